@@ -0,0 +1,234 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.medallia.spider.StaticResources.SizedResource;
+import com.medallia.tiny.Empty;
+import com.medallia.tiny.Encoding;
+import com.medallia.tiny.Implement;
+import com.medallia.tiny.MimeType;
+
+/**
+ * A single file holding many static resources, e.g. audio, video or large scripts, which
+ * are served from memory mapped buffers. Unlike the resources preloaded by
+ * {@link StaticResources#makePreloadedStaticResourceLookup(Class)} the content is not on the
+ * Java heap, so large resources do not add to the cost of garbage collection.
+ * <p>
+ *
+ * The file starts with an index of the resources, which gives the name, offset, length and
+ * MD5 of each, followed by the content. A pack is built from a directory with
+ * {@link #build(File, File)}, where the name of each resource is its path relative to
+ * the directory, e.g. "video/intro.mpg"; it is served for the URI "/video/intro.mpg".
+ */
+public class AssetPack {
+
+	/** "SPK1" */
+	private static final int MAGIC = 0x53504b31;
+
+	/** Resource in the pack */
+	public static class PackedResource implements SizedResource {
+		private final String mimeType;
+		private final MappedByteBuffer content;
+		private final String fingerprint;
+		private PackedResource(String mimeType, MappedByteBuffer content, String fingerprint) {
+			this.mimeType = mimeType;
+			this.content = content;
+			this.fingerprint = fingerprint;
+		}
+		@Implement public boolean exists() {
+			return true;
+		}
+		@Implement public String getMimeType() {
+			return mimeType;
+		}
+		@Implement public long getLength() {
+			return content.capacity();
+		}
+		@Implement public String getFingerprint() {
+			return fingerprint;
+		}
+		@Implement public void copyTo(OutputStream stream) throws IOException {
+			copyTo(stream, 0, getLength());
+		}
+		@Implement public void copyTo(OutputStream stream, long offset, long length) throws IOException {
+			// the servlet API only gives access to a stream, so the content is copied in chunks
+			WritableByteChannel out = Channels.newChannel(stream);
+			ByteBuffer b = content.duplicate();
+			b.position((int) offset);
+			b.limit((int) (offset + length));
+			while (b.hasRemaining())
+				out.write(b);
+		}
+	}
+
+	private final RandomAccessFile file;
+	private final Map<String, PackedResource> resources;
+
+	private AssetPack(RandomAccessFile file, Map<String, PackedResource> resources) {
+		this.file = file;
+		this.resources = resources;
+	}
+
+	/** @return the resource with the given name, or null if there is no such resource in the pack */
+	public PackedResource getResource(String name) {
+		return resources.get(name);
+	}
+
+	/** @return the names of the resources in the pack */
+	public Iterable<String> getNames() {
+		return resources.keySet();
+	}
+
+	/** close the file; the mapped content can still be copied */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/** @return the pack in the given file; the content of each resource is memory mapped */
+	public static AssetPack open(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			if (in.readInt() != MAGIC)
+				throw new IOException(f + " is not an asset pack");
+			// the content follows the index
+			long contentStart = 8 + in.readInt();
+			int n = in.readInt();
+			String[] names = new String[n];
+			long[] offsets = new long[n];
+			long[] lengths = new long[n];
+			String[] fingerprints = new String[n];
+			for (int i = 0; i < n; i++) {
+				names[i] = in.readUTF();
+				offsets[i] = in.readLong();
+				lengths[i] = in.readLong();
+				fingerprints[i] = in.readUTF();
+			}
+			Map<String, PackedResource> resources = Empty.hashMap();
+			for (int i = 0; i < n; i++) {
+				long offset = contentStart + offsets[i];
+				if (offset + lengths[i] > channel.size())
+					throw new IOException(f + " is truncated");
+				MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, offset, lengths[i]);
+				String ext = names[i].substring(names[i].lastIndexOf('.') + 1);
+				resources.put(names[i], new PackedResource(MimeType.getMimeTypeForExtension(ext), content, fingerprints[i]));
+			}
+			return new AssetPack(file, Collections.unmodifiableMap(resources));
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		} catch (RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/** Write a pack with the files in the given directory, and its subdirectories, to the given file */
+	public static void build(File dir, File pack) throws IOException {
+		List<String> names = Empty.list();
+		addFiles(dir, "", names);
+		Collections.sort(names);
+
+		ByteArrayOutputStream indexBuf = new ByteArrayOutputStream();
+		DataOutputStream index = new DataOutputStream(indexBuf);
+		index.writeInt(names.size());
+		long offset = 0;
+		for (String name : names) {
+			File f = new File(dir, name);
+			index.writeUTF(name);
+			index.writeLong(offset);
+			index.writeLong(f.length());
+			index.writeUTF(md5(f));
+			offset += f.length();
+		}
+		index.close();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pack)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(indexBuf.size());
+			indexBuf.writeTo(out);
+			for (String name : names) {
+				InputStream in = new FileInputStream(new File(dir, name));
+				try {
+					IOHelpers.copy(in, out);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void addFiles(File dir, String prefix, List<String> names) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("Could not list " + dir);
+		for (File f : files) {
+			if (f.isDirectory())
+				addFiles(f, prefix + f.getName() + "/", names);
+			else
+				names.add(prefix + f.getName());
+		}
+	}
+
+	/** @return the MD5 of the content of the given file, in hex */
+	private static String md5(File f) throws IOException {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				md5.update(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		return Encoding.hexEncode(md5.digest());
+	}
+
+}
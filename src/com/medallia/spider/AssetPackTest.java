@@ -0,0 +1,138 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.medallia.spider.AssetPack.PackedResource;
+import com.medallia.tiny.Empty;
+import com.medallia.tiny.Encoding;
+
+/** Tests for {@link AssetPack} */
+public class AssetPackTest extends TestCase {
+
+	private File dir;
+
+	@Override protected void setUp() throws IOException {
+		dir = File.createTempFile("assetpack", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override protected void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File c : files)
+				delete(c);
+		}
+		f.delete();
+	}
+
+	private void write(String name, byte[] content) throws IOException {
+		File f = new File(dir, name);
+		f.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] copy(PackedResource r, long offset, long length) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		r.copyTo(out, offset, length);
+		return out.toByteArray();
+	}
+
+	private static byte[] range(byte[] b, int from, int to) {
+		byte[] r = new byte[to - from];
+		System.arraycopy(b, from, r, 0, r.length);
+		return r;
+	}
+
+	/** test that the resources written by build() are read back by open() */
+	public void testRoundTrip() throws IOException {
+		byte[] clip = new byte[100000];
+		for (int i = 0; i < clip.length; i++)
+			clip[i] = (byte) (i * 31);
+		byte[] script = "var x = 1;".getBytes("utf-8");
+		write("video/clip.mpg", clip);
+		write("app.js", script);
+		write("empty.txt", new byte[0]);
+
+		// the pack is written outside the directory, which would otherwise include it
+		File packed = File.createTempFile("assets", ".pack");
+		try {
+			AssetPack.build(dir, packed);
+			AssetPack pack = AssetPack.open(packed);
+			try {
+				Set<String> names = Empty.hashSet();
+				for (String name : pack.getNames())
+					names.add(name);
+				assertEquals(Empty.hashSet(Arrays.asList("video/clip.mpg", "app.js", "empty.txt")), names);
+				assertNull(pack.getResource("missing.js"));
+
+				PackedResource r = pack.getResource("video/clip.mpg");
+				assertTrue(r.exists());
+				assertEquals("video/mpeg", r.getMimeType());
+				assertEquals(clip.length, r.getLength());
+				assertEquals(Encoding.md5(clip), r.getFingerprint());
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				r.copyTo(out);
+				assertTrue(Arrays.equals(clip, out.toByteArray()));
+				assertTrue(Arrays.equals(range(clip, 10, 20), copy(r, 10, 10)));
+				assertTrue(Arrays.equals(range(clip, clip.length - 5, clip.length), copy(r, clip.length - 5, 5)));
+
+				r = pack.getResource("app.js");
+				assertEquals(Encoding.md5(script), r.getFingerprint());
+				assertTrue(Arrays.equals(script, copy(r, 0, r.getLength())));
+
+				r = pack.getResource("empty.txt");
+				assertEquals(0, r.getLength());
+				assertEquals(0, copy(r, 0, 0).length);
+			} finally {
+				pack.close();
+			}
+		} finally {
+			packed.delete();
+		}
+	}
+
+	/** test that a file which is not a pack is rejected */
+	public void testNotAPack() throws IOException {
+		write("other.bin", new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		try {
+			AssetPack.open(new File(dir, "other.bin"));
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.util.List;
+
+import com.medallia.tiny.Empty;
+
+/**
+ * Range of bytes requested with the Range header, e.g. so that a media player
+ * can seek without downloading the whole file.
+ */
+class ByteRange {
+
+	/** requests with more ranges than this get the whole resource */
+	private static final int MAX_RANGES = 16;
+
+	/** the first byte */
+	final long start;
+	/** the last byte, inclusive */
+	final long end;
+
+	private ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/** @return the number of bytes in the range */
+	long getLength() {
+		return end - start + 1;
+	}
+
+	/** @return the value of the Content-Range header for this range of a resource of the given length */
+	String getContentRange(long length) {
+		return "bytes " + start + "-" + end + "/" + length;
+	}
+
+	/**
+	 * @return the ranges of a resource of the given length requested by the given Range header;
+	 * empty if none of them can be satisfied, or null if the header is not valid and should be ignored
+	 */
+	static List<ByteRange> parse(String header, long length) {
+		if (header == null || !header.startsWith("bytes="))
+			return null;
+		String[] specs = header.substring("bytes=".length()).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+
+		List<ByteRange> ranges = Empty.list();
+		boolean anySpec = false;
+		for (String spec : specs) {
+			spec = spec.trim();
+			// empty elements of the list are allowed
+			if (spec.length() == 0)
+				continue;
+			anySpec = true;
+			int dash = spec.indexOf('-');
+			if (dash < 0)
+				return null;
+			long start, end;
+			try {
+				if (dash == 0) {
+					// suffix range, i.e. the last n bytes
+					long n = parseNumber(spec.substring(1));
+					if (n == 0)
+						continue;
+					start = Math.max(0, length - n);
+					end = length - 1;
+				} else {
+					start = parseNumber(spec.substring(0, dash));
+					String last = spec.substring(dash + 1);
+					if (last.length() == 0) {
+						end = length - 1;
+					} else {
+						long l = parseNumber(last);
+						if (l < start)
+							return null;
+						end = Math.min(length - 1, l);
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (start < length)
+				ranges.add(new ByteRange(start, end));
+		}
+		return anySpec ? ranges : null;
+	}
+
+	/** @return the given number, which must only have digits; unlike Long.parseLong() a sign is not allowed */
+	private static long parseNumber(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) < '0' || s.charAt(i) > '9')
+				throw new NumberFormatException(s);
+		}
+		return Long.parseLong(s);
+	}
+
+}
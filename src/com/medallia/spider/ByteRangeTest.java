@@ -0,0 +1,108 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/** Tests for {@link ByteRange} */
+public class ByteRangeTest extends TestCase {
+
+	private static void assertRange(long start, long end, ByteRange r) {
+		assertEquals(start, r.start);
+		assertEquals(end, r.end);
+	}
+
+	/** @return the single range of a resource of the given length requested by the given header */
+	private static ByteRange parseOne(String header, long length) {
+		List<ByteRange> ranges = ByteRange.parse(header, length);
+		assertEquals(1, ranges.size());
+		return ranges.get(0);
+	}
+
+	/** test ranges which can be satisfied */
+	public void testRanges() {
+		assertRange(0, 9, parseOne("bytes=0-9", 100));
+		assertRange(10, 99, parseOne("bytes=10-", 100));
+		assertRange(90, 99, parseOne("bytes=-10", 100));
+		// the end and the suffix are limited to the length of the resource
+		assertRange(50, 99, parseOne("bytes=50-1000", 100));
+		assertRange(0, 99, parseOne("bytes=-1000", 100));
+		assertEquals(10, parseOne("bytes=0-9", 100).getLength());
+		assertEquals("bytes 0-9/100", parseOne("bytes=0-9", 100).getContentRange(100));
+
+		List<ByteRange> ranges = ByteRange.parse("bytes=0-0, 5-9 ,-1", 100);
+		assertEquals(3, ranges.size());
+		assertRange(0, 0, ranges.get(0));
+		assertRange(5, 9, ranges.get(1));
+		assertRange(99, 99, ranges.get(2));
+		// empty elements of the list are skipped
+		assertRange(0, 9, parseOne("bytes=0-9,", 100));
+	}
+
+	/** test that a suffix range of an empty resource cannot be satisfied */
+	public void testSuffixOfEmpty() {
+		assertTrue(ByteRange.parse("bytes=-5", 0).isEmpty());
+		assertTrue(ByteRange.parse("bytes=-0", 100).isEmpty());
+	}
+
+	/** test that a range which starts at or past the end cannot be satisfied */
+	public void testStartPastEnd() {
+		assertTrue(ByteRange.parse("bytes=100-", 100).isEmpty());
+		assertTrue(ByteRange.parse("bytes=100-200", 100).isEmpty());
+		assertTrue(ByteRange.parse("bytes=1000-", 100).isEmpty());
+		assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+		// only the ranges that can be satisfied are kept
+		assertRange(0, 9, parseOne("bytes=0-9,200-300", 100));
+	}
+
+	/** test that a header with an end before the start is ignored */
+	public void testEndBeforeStart() {
+		assertNull(ByteRange.parse("bytes=10-9", 100));
+		assertNull(ByteRange.parse("bytes=0-9,20-10", 100));
+	}
+
+	/** test that a header with too many ranges is ignored */
+	public void testTooManyRanges() {
+		StringBuilder sb = new StringBuilder("bytes=0-0");
+		for (int i = 1; i < 16; i++)
+			sb.append(',').append(i).append('-').append(i);
+		assertEquals(16, ByteRange.parse(sb.toString(), 100).size());
+		sb.append(",16-16");
+		assertNull(ByteRange.parse(sb.toString(), 100));
+	}
+
+	/** test that headers which are not valid are ignored */
+	public void testMalformed() {
+		assertNull(ByteRange.parse(null, 100));
+		assertNull(ByteRange.parse("", 100));
+		assertNull(ByteRange.parse("items=0-9", 100));
+		assertNull(ByteRange.parse("bytes=", 100));
+		assertNull(ByteRange.parse("bytes=5", 100));
+		assertNull(ByteRange.parse("bytes=-", 100));
+		assertNull(ByteRange.parse("bytes=a-9", 100));
+		assertNull(ByteRange.parse("bytes=0-b", 100));
+		assertNull(ByteRange.parse("bytes=0-9-", 100));
+		assertNull(ByteRange.parse("bytes=--5", 100));
+		assertNull(ByteRange.parse("bytes=+0-9", 100));
+		assertNull(ByteRange.parse("bytes=0-+9", 100));
+		assertNull(ByteRange.parse("bytes=,", 100));
+		assertNull(ByteRange.parse("bytes=0-99999999999999999999", 100));
+	}
+
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import com.medallia.spider.SpiderServlet.RequestHandler;
+import com.medallia.spider.api.StRenderable.DynamicInput;
+
+/**
+ * Interface for an {@link EmbeddedRenderTask} whose rendered content can be
+ * reused by other requests, e.g. a menu or footer which rarely changes.
+ * <p>
+ *
+ * If the fragment cache is enabled (see {@link SpiderServlet#setFragmentCacheSize(int)})
+ * the content is cached under the class of the task and the key returned from
+ * {@link #getCacheKey(DynamicInput, RequestHandler)}; while the content is cached
+ * neither the action method nor the template of the task is run. The content of the
+ * embedded tasks it depends on, which is also given to the page, is cached along with
+ * it, so those tasks are not run either unless other tasks need them; the key must thus
+ * also cover what their content depends on.
+ */
+public interface CacheableEmbeddedRenderTask extends EmbeddedRenderTask {
+
+	/**
+	 * @return the key that, together with the class of the task, identifies the rendered
+	 * content, or null if the content should not be cached for this request. The key must
+	 * include everything the content depends on, e.g. request parameters and cookies.
+	 */
+	String getCacheKey(DynamicInput input, RequestHandler request);
+
+	/** @return the number of seconds the rendered content may be reused; the same unit as {@link PageCache#ttl()} */
+	int getCacheTtl();
+
+}
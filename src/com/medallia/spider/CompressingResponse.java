@@ -0,0 +1,258 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response that compresses the body with gzip as it is written. The first bytes are
+ * buffered until there are enough of them to make compression worthwhile; if the
+ * response ends before that, or the content type is not text, it is sent as is.
+ * <p>
+ *
+ * This must only be used if the client accepts gzip, and {@link #finish()} must be
+ * called when the response is complete. If the response fails, {@link #abort()} must
+ * be called before an error page is written to it.
+ */
+class CompressingResponse extends HttpServletResponseWrapper {
+
+	private final int level;
+	private final int minSize;
+
+	/** the bytes written before it is decided whether to compress; null once decided */
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	/** the stream the body is written to once it is decided whether to compress */
+	private OutputStream target;
+	private GZIPOutputStream gzip;
+	/** the deflater of gzip, which holds native memory until it is ended; null once ended */
+	private Deflater deflater;
+
+	/** the content length set by the task; only passed on if the body is not compressed */
+	private int contentLength = -1;
+	/** the content type set by the task */
+	private String contentType;
+	/** true if the task has encoded the body itself */
+	private boolean encoded;
+
+	private ServletOutputStream out;
+	private PrintWriter writer;
+
+	/**
+	 * @param level the compression level, from 1 (fastest) to 9 (smallest)
+	 * @param minSize the number of bytes a body must have to be compressed
+	 */
+	CompressingResponse(HttpServletResponse res, int level, int minSize) {
+		super(res);
+		this.level = level;
+		this.minSize = minSize;
+	}
+
+	/** decide whether to compress, and write the bytes buffered so far */
+	private void start(boolean complete) throws IOException {
+		byte[] b = buffer.toByteArray();
+		buffer = null;
+		HttpServletResponse res = (HttpServletResponse) getResponse();
+		if (!complete && !encoded && isCompressible(contentType)) {
+			res.setHeader("Content-Encoding", "gzip");
+			res.setHeader("Vary", "Accept-Encoding");
+			startGzip();
+		} else {
+			if (complete)
+				res.setContentLength(b.length);
+			else if (contentLength >= 0)
+				res.setContentLength(contentLength);
+			target = res.getOutputStream();
+		}
+		target.write(b);
+	}
+
+	/** start the compressed body */
+	private void startGzip() throws IOException {
+		gzip = new GZIPOutputStream(getResponse().getOutputStream(), 8192) {
+			{
+				def.setLevel(level);
+				deflater = def;
+			}
+		};
+		target = gzip;
+	}
+
+	/** free the native memory of the deflater; the compressed body cannot be written after this */
+	private void endDeflater() {
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	/** @return true if the given content type is for text; binary data is usually already compressed */
+	private static boolean isCompressible(String contentType) {
+		if (contentType == null)
+			return false;
+		contentType = contentType.toLowerCase();
+		return contentType.startsWith("text/") || contentType.contains("javascript") || contentType.contains("xml") || contentType.contains("json");
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		if (buffer != null) {
+			buffer.write(b, off, len);
+			if (buffer.size() >= minSize)
+				start(false);
+		} else {
+			target.write(b, off, len);
+		}
+	}
+
+	/** send the buffered bytes, if any, and complete the compressed body */
+	void finish() throws IOException {
+		if (writer != null)
+			writer.flush();
+		if (buffer != null) {
+			// nothing to send unless the body was written
+			if (out != null)
+				start(true);
+			else
+				buffer = null;
+		}
+		if (deflater != null) {
+			try {
+				gzip.finish();
+			} finally {
+				endDeflater();
+			}
+		}
+	}
+
+	/**
+	 * Discard the body written so far, so that an error page can be written instead. If the
+	 * wrapped response is committed the body cannot be discarded, and the error page is
+	 * appended to it, compressed if the body is.
+	 */
+	void abort() {
+		if (isCommitted())
+			return;
+		// the content written through the writer is discarded along with the rest of the body
+		writer = null;
+		reset();
+	}
+
+	@Override public ServletOutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			out = new ServletOutputStream() {
+				@Override public void write(int b) throws IOException {
+					CompressingResponse.this.write(new byte[] { (byte) b }, 0, 1);
+				}
+				@Override public void write(byte[] b, int off, int len) throws IOException {
+					CompressingResponse.this.write(b, off, len);
+				}
+				@Override public void flush() throws IOException {
+					// the first bytes are held back until it is decided whether to compress
+					if (buffer == null)
+						target.flush();
+				}
+				@Override public void close() throws IOException {
+					finish();
+				}
+			};
+		}
+		return out;
+	}
+
+	@Override public PrintWriter getWriter() throws IOException {
+		if (writer == null)
+			writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+		return writer;
+	}
+
+	@Override public void setContentLength(int len) {
+		if (buffer != null)
+			contentLength = len;
+		else if (gzip == null)
+			super.setContentLength(len);
+	}
+
+	@Override public void setHeader(String name, String value) {
+		if ("Content-Length".equalsIgnoreCase(name))
+			setContentLength(Integer.parseInt(value));
+		else
+			super.setHeader(name, header(name, value));
+	}
+
+	@Override public void addHeader(String name, String value) {
+		if ("Content-Length".equalsIgnoreCase(name))
+			setContentLength(Integer.parseInt(value));
+		else
+			super.addHeader(name, header(name, value));
+	}
+
+	@Override public void setIntHeader(String name, int value) {
+		if ("Content-Length".equalsIgnoreCase(name))
+			setContentLength(value);
+		else
+			super.setIntHeader(name, value);
+	}
+
+	@Override public void setContentType(String type) {
+		contentType = type;
+		super.setContentType(type);
+	}
+
+	/** @return the value to use for the given header */
+	private String header(String name, String value) {
+		if ("Content-Type".equalsIgnoreCase(name)) {
+			contentType = value;
+		} else if ("Content-Encoding".equalsIgnoreCase(name)) {
+			encoded = true;
+		} else if ("ETag".equalsIgnoreCase(name) && value != null && !value.startsWith("W/")) {
+			// the same ETag is used for the compressed and the uncompressed body
+			return "W/" + value;
+		}
+		return value;
+	}
+
+	@Override public void reset() {
+		super.reset();
+		// the headers are gone, including Content-Encoding, so it is decided again whether to compress
+		endDeflater();
+		buffer = new ByteArrayOutputStream();
+		target = null;
+		gzip = null;
+		contentLength = -1;
+		contentType = null;
+		encoded = false;
+	}
+
+	/** @throws IllegalStateException if the body is being compressed, since the bytes of the compressed body already written cannot be taken back */
+	@Override public void resetBuffer() {
+		if (gzip != null)
+			throw new IllegalStateException("Cannot reset the buffer of a compressed body");
+		super.resetBuffer();
+		if (buffer != null)
+			buffer.reset();
+	}
+
+}
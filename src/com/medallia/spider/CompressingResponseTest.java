@@ -0,0 +1,181 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import com.medallia.tiny.Empty;
+import com.medallia.tiny.Implement;
+
+/** Tests for {@link CompressingResponse} */
+public class CompressingResponseTest extends TestCase {
+
+	/** Response which is committed once the given number of bytes have been written to it */
+	private static class TestResponse implements InvocationHandler {
+		private final int bufferSize;
+		private final Map<String, String> headers = Empty.hashMap();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private TestResponse(int bufferSize) {
+			this.bufferSize = bufferSize;
+		}
+		private HttpServletResponse makeProxy() {
+			return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { HttpServletResponse.class }, this);
+		}
+		private boolean isCommitted() {
+			return body.size() >= bufferSize;
+		}
+		@Implement public Object invoke(Object proxy, Method m, Object[] args) {
+			String name = m.getName();
+			if (name.equals("setHeader") || name.equals("addHeader")) {
+				headers.put((String) args[0], (String) args[1]);
+			} else if (name.equals("setContentType")) {
+				headers.put("Content-Type", (String) args[0]);
+			} else if (name.equals("setContentLength")) {
+				headers.put("Content-Length", String.valueOf(args[0]));
+			} else if (name.equals("getCharacterEncoding")) {
+				return "utf-8";
+			} else if (name.equals("isCommitted")) {
+				return isCommitted();
+			} else if (name.equals("reset")) {
+				if (isCommitted())
+					throw new IllegalStateException("Committed");
+				headers.clear();
+				body.reset();
+			} else if (name.equals("getOutputStream")) {
+				return new ServletOutputStream() {
+					@Override public void write(int b) {
+						body.write(b);
+					}
+				};
+			} else {
+				throw new UnsupportedOperationException(name);
+			}
+			return null;
+		}
+	}
+
+	/** @return text which does not compress well, so that the compressed body commits the response */
+	private static byte[] makeText(int length) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		long x = 1;
+		while (sb.length() < length) {
+			x = x * 6364136223846793005L + 1442695040888963407L;
+			sb.append((char) ('a' + ((x >>> 33) % 26)));
+		}
+		return sb.toString().getBytes("utf-8");
+	}
+
+	private static byte[] gunzip(byte[] b) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(b));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IOHelpers.copy(in, out);
+		return out.toByteArray();
+	}
+
+	private static void write(HttpServletResponse res, byte[] b) throws IOException {
+		OutputStream out = res.getOutputStream();
+		out.write(b);
+		out.flush();
+	}
+
+	/** test that a body of at least the minimum size is compressed */
+	public void testCompressed() throws IOException {
+		TestResponse tr = new TestResponse(Integer.MAX_VALUE);
+		CompressingResponse res = new CompressingResponse(tr.makeProxy(), 6, 100);
+		res.setContentType("text/html");
+		byte[] page = makeText(1000);
+		write(res, page);
+		res.finish();
+		assertEquals("gzip", tr.headers.get("Content-Encoding"));
+		assertEquals(new String(page, "utf-8"), new String(gunzip(tr.body.toByteArray()), "utf-8"));
+	}
+
+	/** test that the compressed body can be completed twice, e.g. when the stream is closed before finish() */
+	public void testFinishTwice() throws IOException {
+		TestResponse tr = new TestResponse(Integer.MAX_VALUE);
+		CompressingResponse res = new CompressingResponse(tr.makeProxy(), 6, 100);
+		res.setContentType("text/html");
+		byte[] page = makeText(1000);
+		write(res, page);
+		res.getOutputStream().close();
+		res.finish();
+		assertEquals(new String(page, "utf-8"), new String(gunzip(tr.body.toByteArray()), "utf-8"));
+	}
+
+	/** test that the buffer cannot be reset once compressed bytes have been written */
+	public void testResetBufferCompressed() throws IOException {
+		TestResponse tr = new TestResponse(Integer.MAX_VALUE);
+		CompressingResponse res = new CompressingResponse(tr.makeProxy(), 6, 100);
+		res.setContentType("text/html");
+		write(res, makeText(1000));
+		try {
+			res.resetBuffer();
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		res.finish();
+	}
+
+	/** test that the body is discarded, along with Content-Encoding, if the page fails before the response is committed */
+	public void testAbort() throws IOException {
+		TestResponse tr = new TestResponse(Integer.MAX_VALUE);
+		CompressingResponse res = new CompressingResponse(tr.makeProxy(), 6, 100);
+		res.setContentType("text/html");
+		write(res, makeText(1000));
+		assertEquals("gzip", tr.headers.get("Content-Encoding"));
+
+		res.abort();
+		assertNull(tr.headers.get("Content-Encoding"));
+		res.setContentType("text/plain");
+		write(res, "error".getBytes("utf-8"));
+		res.finish();
+		assertNull(tr.headers.get("Content-Encoding"));
+		assertEquals("error", new String(tr.body.toByteArray(), "utf-8"));
+	}
+
+	/** test that the error page is compressed along with the body if the page fails after the response is committed */
+	public void testAbortCommitted() throws IOException {
+		TestResponse tr = new TestResponse(100);
+		CompressingResponse res = new CompressingResponse(tr.makeProxy(), 6, 100);
+		res.setContentType("text/html");
+		byte[] page = makeText(200000);
+		write(res, page);
+		assertTrue(res.isCommitted());
+
+		res.abort();
+		write(res, "error".getBytes("utf-8"));
+		res.finish();
+		assertEquals("gzip", tr.headers.get("Content-Encoding"));
+		assertEquals(new String(page, "utf-8") + "error", new String(gunzip(tr.body.toByteArray()), "utf-8"));
+	}
+
+}
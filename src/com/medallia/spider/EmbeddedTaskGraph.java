@@ -0,0 +1,260 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import com.medallia.tiny.Empty;
+import com.medallia.tiny.Implement;
+
+/**
+ * The embedded tasks a task depends on, directly or indirectly, where each class of
+ * {@link EmbeddedRenderTask} is only included once. A task is always rendered after
+ * the tasks it depends on; this is done either serially on the calling thread or
+ * concurrently with an {@link Executor}, in which case the content of each task can
+ * be retrieved as soon as that task is done.
+ * <p>
+ *
+ * Tasks whose content is cached are not rendered. The content of the tasks a cached task
+ * depends on, directly or indirectly, is cached along with it, since it is also given to the
+ * page; those tasks are thus only rendered if a task which is rendered depends on them.
+ */
+class EmbeddedTaskGraph {
+
+	/** Object that renders an embedded task */
+	interface EmbeddedRenderer {
+		/**
+		 * @return the cached content of the given task and of the tasks it depends on, directly
+		 * or indirectly, by class of the task; null if the task must be rendered
+		 */
+		Map<Class<?>, String> getCached(EmbeddedRenderTask t);
+		/** @return the rendered content of the given task */
+		String render(EmbeddedRenderTask t);
+		/**
+		 * Called when a {@link CacheableEmbeddedRenderTask} has been rendered, with the content
+		 * of it and of the tasks it depends on, directly or indirectly, by class of the task
+		 */
+		void putCached(EmbeddedRenderTask t, Map<Class<?>, String> contents);
+	}
+
+	/** An embedded task and its rendered content */
+	static class Node {
+		private final EmbeddedRenderTask task;
+		private final List<Node> deps = Empty.list();
+		private final List<Node> dependents = Empty.list();
+		/** true if the task is a direct dependency of the page */
+		private boolean root;
+		/** number of dependencies that are not done yet; guarded by the graph */
+		private int pendingDeps;
+		/** the cached content this node was taken from, if any; see {@link EmbeddedRenderer#getCached(EmbeddedRenderTask)} */
+		private Map<Class<?>, String> cachedContents;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile String content;
+		private volatile Throwable error;
+
+		private Node(EmbeddedRenderTask task) {
+			this.task = task;
+		}
+
+		/** @return the task */
+		EmbeddedRenderTask getTask() {
+			return task;
+		}
+
+		/** @return true if the task has been rendered, or failed */
+		boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		/** @return the rendered content; waits for the task to be rendered if needed */
+		String getContent() {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for " + task, e);
+			}
+			if (error != null)
+				throw new RuntimeException("Failed to render " + task.getClass().getName(), error);
+			return content;
+		}
+	}
+
+	/** the nodes, where each node comes after the nodes it depends on */
+	private final List<Node> nodes = Empty.list();
+
+	/** @param tasks the embedded tasks a task depends on */
+	EmbeddedTaskGraph(Collection<EmbeddedRenderTask> tasks) {
+		Map<Class<?>, Node> m = Empty.hashMap();
+		for (EmbeddedRenderTask t : tasks)
+			add(t, m, Empty.<Class<?>>hashSet()).root = true;
+	}
+
+	/** @return the node for the given task, which is added along with its dependencies if needed */
+	private Node add(EmbeddedRenderTask t, Map<Class<?>, Node> m, Set<Class<?>> path) {
+		Node n = m.get(t.getClass());
+		if (n != null)
+			return n;
+		if (!path.add(t.getClass()))
+			throw new RuntimeException("Cyclic dependency on " + t.getClass());
+
+		Set<Node> deps = Empty.linkedHashSet();
+		for (EmbeddedRenderTask dep : t.dependsOn())
+			deps.add(add(dep, m, path));
+		path.remove(t.getClass());
+
+		n = new Node(t);
+		n.deps.addAll(deps);
+		for (Node dep : deps)
+			dep.dependents.add(n);
+		m.put(t.getClass(), n);
+		nodes.add(n);
+		return n;
+	}
+
+	/** @return the nodes, where each node comes after the nodes it depends on */
+	List<Node> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Take the content of the tasks that are cached. A task must be rendered unless it is
+	 * cached, or all the tasks that depend on it are cached, or take their content from the
+	 * cache, and the cached content includes it.
+	 */
+	private void takeCached(EmbeddedRenderer r) {
+		// the dependents of a node come after it
+		for (int i = nodes.size() - 1; i >= 0; i--) {
+			Node n = nodes.get(i);
+			boolean isNeeded = n.root;
+			Map<Class<?>, String> cached = null;
+			for (Node d : n.dependents) {
+				if (!d.isDone())
+					isNeeded = true;
+				else if (d.cachedContents != null)
+					cached = d.cachedContents;
+			}
+			if (isNeeded || cached == null || !cached.containsKey(n.task.getClass()))
+				cached = r.getCached(n.task);
+			if (cached != null && cached.containsKey(n.task.getClass())) {
+				n.cachedContents = cached;
+				n.content = cached.get(n.task.getClass());
+				n.done.countDown();
+			}
+		}
+		List<Node> toRender = Empty.list();
+		for (Node n : nodes) {
+			if (!n.isDone())
+				toRender.add(n);
+		}
+		for (Node n : nodes) {
+			n.dependents.retainAll(toRender);
+			for (Node dep : n.deps) {
+				if (!dep.isDone())
+					n.pendingDeps++;
+			}
+		}
+	}
+
+	/** pass the content of the given node, which has been rendered, and of its dependencies to the renderer for caching */
+	private static void putCached(Node n, EmbeddedRenderer r) {
+		if (!(n.task instanceof CacheableEmbeddedRenderTask))
+			return;
+		Map<Class<?>, String> contents = Empty.hashMap();
+		addContents(n, contents);
+		r.putCached(n.task, contents);
+	}
+
+	private static void addContents(Node n, Map<Class<?>, String> contents) {
+		if (contents.containsKey(n.task.getClass()))
+			return;
+		// the dependencies are done, and the node itself has just been rendered
+		contents.put(n.task.getClass(), n.content);
+		for (Node dep : n.deps)
+			addContents(dep, contents);
+	}
+
+	/** Render all the tasks on the calling thread; any exception is thrown directly */
+	void renderSerially(EmbeddedRenderer r) {
+		takeCached(r);
+		for (Node n : nodes) {
+			if (n.isDone())
+				continue;
+			n.content = r.render(n.task);
+			n.done.countDown();
+			putCached(n, r);
+		}
+	}
+
+	/**
+	 * Render all the tasks with the given executor; this method returns immediately. A task
+	 * is not rendered if a task it depends on fails; the error is then thrown from
+	 * {@link Node#getContent()} for both tasks.
+	 */
+	void renderConcurrently(EmbeddedRenderer r, Executor executor) {
+		takeCached(r);
+		for (Node n : nodes) {
+			if (!n.isDone() && n.pendingDeps == 0)
+				submit(n, r, executor);
+		}
+	}
+
+	private void submit(final Node n, final EmbeddedRenderer r, final Executor executor) {
+		executor.execute(new Runnable() {
+			@Implement public void run() {
+				try {
+					n.content = r.render(n.task);
+					putCached(n, r);
+				} catch (Throwable t) {
+					n.error = t;
+				}
+				finish(n, r, executor);
+			}
+		});
+	}
+
+	/** mark the given node as done and submit the dependents that are now ready */
+	private void finish(Node n, EmbeddedRenderer r, Executor executor) {
+		n.done.countDown();
+		for (Node d : n.dependents) {
+			boolean ready;
+			synchronized (this) {
+				if (n.error != null && d.error == null)
+					d.error = n.error;
+				ready = --d.pendingDeps == 0;
+			}
+			if (!ready)
+				continue;
+			if (d.error != null)
+				finish(d, r, executor);
+			else
+				submit(d, r, executor);
+		}
+	}
+
+	/** Wait for all the tasks to be rendered; throws an exception if any of them failed */
+	void await() {
+		for (Node n : nodes)
+			n.getContent();
+	}
+
+}
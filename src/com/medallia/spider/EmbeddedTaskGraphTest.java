@@ -0,0 +1,139 @@
+/*
+ * This file is part of the Spider Web Framework.
+ * 
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import com.medallia.spider.EmbeddedTaskGraph.EmbeddedRenderer;
+import com.medallia.spider.EmbeddedTaskGraph.Node;
+import com.medallia.spider.SpiderServlet.RequestHandler;
+import com.medallia.spider.api.StRenderable.DynamicInput;
+import com.medallia.tiny.Empty;
+import com.medallia.tiny.Implement;
+
+/** Tests for {@link EmbeddedTaskGraph} */
+public class EmbeddedTaskGraphTest extends TestCase {
+
+	private abstract static class TestTask extends Task implements EmbeddedRenderTask {
+		@Implement public String getStAttribute() { return getClass().getSimpleName(); }
+	}
+	/** only needed by the cached task, so it is not one the page depends on directly */
+	private static class OnlyCachedDep extends TestTask { }
+	/** needed by both the cached and the rendered task */
+	private static class SharedDep extends TestTask { }
+	private static class CachedTask extends TestTask implements CacheableEmbeddedRenderTask {
+		@Override public Collection<EmbeddedRenderTask> dependsOn() { return with(new OnlyCachedDep(), new SharedDep()); }
+		@Implement public String getCacheKey(DynamicInput input, RequestHandler request) { return ""; }
+		@Implement public int getCacheTtl() { return 60; }
+	}
+	private static class RenderedTask extends TestTask {
+		@Override public Collection<EmbeddedRenderTask> dependsOn() { return with(new SharedDep()); }
+	}
+
+	/** renderer which caches the content of {@link CachedTask}; the content of each task is its name and the round it was rendered in */
+	private static class TestRenderer implements EmbeddedRenderer {
+		private final Map<Class<?>, Map<Class<?>, String>> cache = Empty.hashMap();
+		private final List<String> rendered = Empty.list();
+		private int round;
+		@Implement public synchronized Map<Class<?>, String> getCached(EmbeddedRenderTask t) {
+			return cache.get(t.getClass());
+		}
+		@Implement public synchronized String render(EmbeddedRenderTask t) {
+			rendered.add(t.getStAttribute());
+			return t.getStAttribute() + round;
+		}
+		@Implement public synchronized void putCached(EmbeddedRenderTask t, Map<Class<?>, String> contents) {
+			cache.put(t.getClass(), contents);
+		}
+	}
+
+	private static EmbeddedTaskGraph makeGraph() {
+		return new EmbeddedTaskGraph(Arrays.<EmbeddedRenderTask>asList(new CachedTask(), new RenderedTask()));
+	}
+
+	/** @return the content of the tasks in the graph, by name */
+	private static Map<String, String> getContents(EmbeddedTaskGraph g) {
+		g.await();
+		Map<String, String> m = Empty.hashMap();
+		for (Node n : g.getNodes())
+			m.put(n.getTask().getStAttribute(), n.getContent());
+		return m;
+	}
+
+	private static Map<String, String> makeContents(String... nameAndContent) {
+		Map<String, String> m = Empty.hashMap();
+		for (int i = 0; i < nameAndContent.length; i += 2)
+			m.put(nameAndContent[i], nameAndContent[i + 1]);
+		return m;
+	}
+
+	/** render the graph twice; the second time the cached task and its dependency which is only needed by it are not rendered */
+	private void checkCached(TestRenderer r, Executor executor) {
+		EmbeddedTaskGraph g = makeGraph();
+		render(g, r, executor);
+		assertEquals(Arrays.asList("OnlyCachedDep", "SharedDep", "CachedTask", "RenderedTask"), r.rendered);
+		assertEquals(makeContents("OnlyCachedDep", "OnlyCachedDep0", "SharedDep", "SharedDep0", "CachedTask", "CachedTask0", "RenderedTask", "RenderedTask0"), getContents(g));
+
+		r.rendered.clear();
+		r.round++;
+		g = makeGraph();
+		render(g, r, executor);
+		assertEquals(Arrays.asList("SharedDep", "RenderedTask"), r.rendered);
+		// the page still gets the content of the dependency of the cached task
+		assertEquals(makeContents("OnlyCachedDep", "OnlyCachedDep0", "SharedDep", "SharedDep1", "CachedTask", "CachedTask0", "RenderedTask", "RenderedTask1"), getContents(g));
+	}
+
+	private static void render(EmbeddedTaskGraph g, EmbeddedRenderer r, Executor executor) {
+		if (executor == null)
+			g.renderSerially(r);
+		else
+			g.renderConcurrently(r, executor);
+	}
+
+	/** test that the dependencies only needed by cached tasks are taken from the cache */
+	public void testCachedSerially() {
+		checkCached(new TestRenderer(), null);
+	}
+
+	/** test the same with an executor */
+	public void testCachedConcurrently() {
+		checkCached(new TestRenderer(), new Executor() {
+			@Implement public void execute(Runnable command) {
+				command.run();
+			}
+		});
+	}
+
+	/** test that a dependency missing from the cached content is rendered */
+	public void testIncompleteCache() {
+		TestRenderer r = new TestRenderer();
+		Map<Class<?>, String> contents = Empty.hashMap();
+		contents.put(CachedTask.class, "cached");
+		r.cache.put(CachedTask.class, contents);
+		EmbeddedTaskGraph g = makeGraph();
+		g.renderSerially(r);
+		assertEquals(Arrays.asList("OnlyCachedDep", "SharedDep", "RenderedTask"), r.rendered);
+		assertEquals("cached", getContents(g).get("CachedTask"));
+	}
+
+}
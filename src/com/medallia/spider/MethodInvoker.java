@@ -1,13 +1,15 @@
 package com.medallia.spider;
 
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
 
-import com.medallia.tiny.CollUtils;
+import com.medallia.tiny.ClassCache;
 import com.medallia.tiny.Empty;
 import com.medallia.tiny.Implement;
 import com.medallia.tiny.ObjectProvider;
@@ -37,23 +39,68 @@ public class MethodInvoker {
 	}
 	private interface LifecycleHandlerSet0 extends LifecycleHandlerSet {
 		Map<Class<?>, LifecycleHandler<?>> getHandlers();
+		LifecycleHandlerCache getCache();
 	}
 	
-	/** @return a {@link LifecycleHandlerSet} that should be passed to {@link #MethodInvoker(ObjectProvider, LifecycleHandlerSet)} */
+	/**
+	 * Cache of the handler found for each type of argument, shared by the {@link LifecycleHandlerSet}
+	 * objects made with {@link MethodInvoker#getLifecycleHandlerSet(LifecycleHandlerCache)}; the sets
+	 * are typically made per request, while the cache is kept for as long as the servlet.
+	 */
+	public static class LifecycleHandlerCache {
+		/** maximum number of distinct handler sets kept; the cache is simply cleared if this is exceeded */
+		private static final int MAX_HANDLER_SETS = 1024;
+		/**
+		 * map from the types registered in a {@link LifecycleHandlerSet}, in registration order, to a map
+		 * from the type of an argument to the index of the handler for that type (-1 if none)
+		 */
+		private final ConcurrentMap<List<Class<?>>, ConcurrentMap<Class<?>, Integer>> handlerIndexMap = Empty.concurrentMap();
+		
+		private ConcurrentMap<Class<?>, Integer> findHandlerIndex(List<Class<?>> types) {
+			ConcurrentMap<Class<?>, Integer> hi = handlerIndexMap.get(types);
+			if (hi == null) {
+				if (handlerIndexMap.size() >= MAX_HANDLER_SETS)
+					handlerIndexMap.clear();
+				hi = Empty.concurrentMap();
+				ConcurrentMap<Class<?>, Integer> old = handlerIndexMap.putIfAbsent(types, hi);
+				if (old != null)
+					hi = old;
+			}
+			return hi;
+		}
+	}
+	
+	/** @return a {@link LifecycleHandlerSet} that should be passed to {@link #MethodInvoker(ObjectProvider, LifecycleHandlerSet)};
+	 * if several registered types match an argument the one registered first is used.
+	 */
 	public static LifecycleHandlerSet getLifecycleHandlerSet() {
+		return getLifecycleHandlerSet(null);
+	}
+	
+	/** Same as {@link #getLifecycleHandlerSet()}, but the handler found for each type of argument is
+	 * kept in the given cache, so that it is only searched for once for sets with the same registered types.
+	 */
+	public static LifecycleHandlerSet getLifecycleHandlerSet(final LifecycleHandlerCache cache) {
 		return new LifecycleHandlerSet0() {
-			private final Map<Class<?>, LifecycleHandler<?>> m = Empty.hashMap();
+			private final Map<Class<?>, LifecycleHandler<?>> m = Empty.linkedHashMap();
 			@Implement public <X> void register(Class<X> clazz, LifecycleHandler<X> h) {
 				m.put(clazz, h);
 			}
 			@Implement public Map<Class<?>, LifecycleHandler<?>> getHandlers() {
 				return m;
 			}
+			@Implement public LifecycleHandlerCache getCache() {
+				return cache;
+			}
 		};
 	}
 	
 	private final ObjectProvider injector;
-	private final Map<Class<?>, LifecycleHandler<?>> handlers;
+	/** the registered handlers and the types they are registered for, in registration order */
+	private final LifecycleHandler<Object>[] handlers;
+	private final List<Class<?>> handlerTypes;
+	/** see {@link LifecycleHandlerCache#handlerIndexMap}; null if there are no handlers or no cache */
+	private final ConcurrentMap<Class<?>, Integer> handlerIndex;
 	
 	/**
 	 * @param injector used to obtain the arguments for the method to be invoked
@@ -61,107 +108,198 @@ public class MethodInvoker {
 	 */
 	public MethodInvoker(ObjectProvider injector, LifecycleHandlerSet h) {
 		this.injector = injector;
-		this.handlers = ((LifecycleHandlerSet0)h).getHandlers();
+		LifecycleHandlerSet0 hs = (LifecycleHandlerSet0) h;
+		Map<Class<?>, LifecycleHandler<?>> m = hs.getHandlers();
+		this.handlers = newHandlerArray(m.size());
+		m.values().toArray(handlers);
+		this.handlerTypes = Empty.list(m.keySet());
+		this.handlerIndex = m.isEmpty() || hs.getCache() == null ? null : hs.getCache().findHandlerIndex(handlerTypes);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static LifecycleHandler<Object>[] newHandlerArray(int n) {
+		return (LifecycleHandler<Object>[]) new LifecycleHandler<?>[n];
+	}
+
+	/**
+	 * A constructor or method prepared for repeated invocation; see
+	 * {@link MethodInvoker#prepare(Constructor)} and {@link MethodInvoker#prepare(Method)}.
+	 * Instances do not hold any request state and should be cached and re-used, e.g.
+	 * one per task class.
+	 */
+	public static abstract class Invokable<X> {
+		/** @return the arguments for the invocation, obtained from the given injector */
+		protected abstract Object[] makeArgs(ObjectProvider injector);
+		/** do the actual invocation on the given object (ignored for constructors) */
+		protected abstract X call(Object obj, Object[] args) throws Exception;
+		/** @return the class declaring the constructor or method */
+		public abstract Class<?> getDeclaringClass();
+	}
+	
+	/** @return an {@link Invokable} for the given constructor; access checks are suppressed
+	 * once here instead of on each invocation.
+	 */
+	public static <X> Invokable<X> prepare(final Constructor<X> cons) {
+		cons.setAccessible(true);
+		return new Invokable<X>() {
+			@Override protected Object[] makeArgs(ObjectProvider injector) {
+				return injector.makeArgsFor(cons);
+			}
+			@Override protected X call(Object obj, Object[] args) throws Exception {
+				return cons.newInstance(args);
+			}
+			@Override public Class<?> getDeclaringClass() {
+				return cons.getDeclaringClass();
+			}
+			@Override public String toString() {
+				return "constructor " + cons;
+			}
+		};
+	}
+	
+	/** @return an {@link Invokable} for the given method; access checks are suppressed
+	 * once here instead of on each invocation.
+	 */
+	public static Invokable<Object> prepare(final Method m) {
+		m.setAccessible(true);
+		return new Invokable<Object>() {
+			@Override protected Object[] makeArgs(ObjectProvider injector) {
+				return injector.makeArgsFor(m);
+			}
+			@Override protected Object call(Object obj, Object[] args) throws Exception {
+				return m.invoke(obj, args);
+			}
+			@Override public Class<?> getDeclaringClass() {
+				return m.getDeclaringClass();
+			}
+			@Override public String toString() {
+				return "method " + m;
+			}
+		};
 	}
 
+	/** the {@link Invokable} objects made by {@link #invoke(Constructor)} and {@link #invoke(Method, Object)}, for each declaring class */
+	private static final ClassCache<ConcurrentMap<Member, Invokable<?>>> PREPARED = new ClassCache<ConcurrentMap<Member, Invokable<?>>>() {
+		@Override protected ConcurrentMap<Member, Invokable<?>> compute(Class<?> c) {
+			return Empty.concurrentMap();
+		}
+	};
+
 	/** @return the object created by invoking the given constructor
 	 * Note: any exception thrown by the constructor is thrown unchecked by this method.
 	 */
-	public <X> X invoke(final Constructor<X> cons) {
-		final Object[] consArgs = injector.makeArgsFor(cons);
-		return invoke(consArgs, new Callable<X>(){
-			@Implement public X call() throws Exception {
-				try {
-					return cons.newInstance(consArgs);
-				} catch (Exception e) {
-					throw Rethrow.withComment(e, "While invoking constructor " + cons + " with " + Arrays.toString(consArgs));
-				}
-			}
-		});
+	public <X> X invoke(Constructor<X> cons) {
+		ConcurrentMap<Member, Invokable<?>> m = PREPARED.get(cons.getDeclaringClass());
+		@SuppressWarnings("unchecked")
+		Invokable<X> inv = (Invokable<X>) m.get(cons);
+		if (inv == null) {
+			inv = prepare(cons);
+			m.put(cons, inv);
+		}
+		return invoke(inv, null);
 	}
 	
 	/** @return the object returned from invoking the given method on the given object
 	 * Note: any exception thrown by the constructor is thrown unchecked by this method.
 	 */
-	public Object invoke(final Method m, final Object obj) {
-		final Object[] args = injector.makeArgsFor(m);
-		return invoke(args, new Callable<Object>(){
-			@Implement public Object call() throws Exception {
+	public Object invoke(Method m, Object obj) {
+		ConcurrentMap<Member, Invokable<?>> pm = PREPARED.get(m.getDeclaringClass());
+		@SuppressWarnings("unchecked")
+		Invokable<Object> inv = (Invokable<Object>) pm.get(m);
+		if (inv == null) {
+			inv = prepare(m);
+			pm.put(m, inv);
+		}
+		return invoke(inv, obj);
+	}
+	
+	/** @return the object returned from invoking the given {@link Invokable} on the given object
+	 * Note: any exception thrown by the constructor or method is thrown unchecked by this method.
+	 */
+	public <X> X invoke(final Invokable<X> inv, final Object obj) {
+		final Object[] args = inv.makeArgs(injector);
+		return invoke(args, new Callable<X>(){
+			@Implement public X call() throws Exception {
 				try {
-					return m.invoke(obj, args);
+					return inv.call(obj, args);
 				} catch (Exception e) {
-					throw Rethrow.withComment(e, "While invoking method " + m + " with " + Arrays.toString(args));
+					throw Rethrow.withComment(e, "While invoking " + inv + " with " + Arrays.toString(args));
 				}
 			}
 		});
 	}
 	
-	/** Wrapper for an object and its {@link LifecycleHandler} */
-	private interface BoundLifecycleHandler {
-		void onInit();
-		void onError(Throwable t);
-		void onSuccess();
-	}
-	
+	/**
+	 * Call the given Callable, surrounded by calls to the {@link LifecycleHandler} of each argument
+	 * that has one. The handlers are called in argument order before the call and in reverse order
+	 * after; a handler whose onInit method completed gets onError if any later step fails.
+	 */
 	private <X> X invoke(Object[] args, Callable<X> c) {
-		List<BoundLifecycleHandler> hl = findLifecycleHandlers(args);
-		try {
-			return invoke(hl, args, c);
-		} catch (Exception e) {
-			// Work around Java's type system
-			throw Rethrow.uncheckedThrow(e);
+		int n = 0;
+		LifecycleHandler<Object>[] hl = null;
+		Object[] objs = null;
+		if (handlers.length > 0) {
+			for (Object o : args) {
+				int k = findHandler(o);
+				if (k >= 0) {
+					if (hl == null) {
+						hl = newHandlerArray(args.length);
+						objs = new Object[args.length];
+					}
+					hl[n] = handlers[k];
+					objs[n++] = o;
+				}
+			}
 		}
-	}
-	
-	private <X> X invoke(List<BoundLifecycleHandler> hl, Object[] args, Callable<X> c) throws Exception {
-		if (hl.isEmpty()) {
-			return c.call();
-		} else {
-			BoundLifecycleHandler h = CollUtils.first(hl);
-			h.onInit();
-			X x;
-			try {
-				x = invoke(CollUtils.tail(hl), args, c);
-			} catch (Throwable t) {
+		
+		// number of handlers that have been initialized and not yet completed
+		int k = 0;
+		try {
+			for (; k < n; k++)
+				hl[k].onInit(objs[k]);
+			X x = c.call();
+			while (k > 0) {
+				k--;
+				hl[k].onSuccess(objs[k]);
+			}
+			return x;
+		} catch (Throwable t) {
+			while (k > 0) {
+				k--;
 				try {
-					h.onError(t);
+					hl[k].onError(objs[k], t);
 				} catch (Throwable nested) {
 					// ignore these
 				}
-				throw Rethrow.uncheckedThrow(t);
 			}
-			h.onSuccess();
-			return x;
+			// Work around Java's type system
+			throw Rethrow.uncheckedThrow(t);
 		}
 	}
 	
-	private List<BoundLifecycleHandler> findLifecycleHandlers(Object[] args) {
-		List<BoundLifecycleHandler> l = Empty.list();
-		for (Object o : args) {
-			LifecycleHandler<?> h = findHandler(o);
-			if (h != null)
-				l.add(bind(o, h));
-		}
-		return l;
-	}
-
-	private LifecycleHandler<?> findHandler(Object o) {
+	/** @return the index of the handler for the given argument, or -1 if there is none */
+	private int findHandler(Object o) {
+		if (o == null) return -1;
 		Class<?> c = o.getClass();
-		for (Map.Entry<Class<?>, LifecycleHandler<?>> me : handlers.entrySet()) {
-			if (me.getKey().isAssignableFrom(c))
-				return me.getValue();
+		if (handlerIndex == null)
+			return resolveHandler(c);
+		Integer k = handlerIndex.get(c);
+		if (k == null) {
+			k = resolveHandler(c);
+			handlerIndex.put(c, k);
 		}
-		return null;
+		return k;
 	}
-
-	private <X> BoundLifecycleHandler bind(Object o, final LifecycleHandler<X> h) {
-		@SuppressWarnings("unchecked")
-		final X x = (X) o;
-		return new BoundLifecycleHandler() {
-			@Implement public void onInit() { h.onInit(x); }
-			@Implement public void onError(Throwable t) { h.onError(x, t); }
-			@Implement public void onSuccess() { h.onSuccess(x); }
-		};
+	
+	/** @return the index of the first handler registered for a supertype of the given class, or -1 if there is none */
+	private int resolveHandler(Class<?> c) {
+		int i = 0;
+		for (Class<?> hc : handlerTypes) {
+			if (hc.isAssignableFrom(c))
+				return i;
+			i++;
+		}
+		return -1;
 	}
 
 }
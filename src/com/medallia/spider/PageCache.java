@@ -0,0 +1,50 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import com.medallia.spider.api.StRenderable.Input;
+
+/**
+ * Annotation for task classes whose response to a GET request only depends on the
+ * given {@link Input} values and cookies. If the page cache is enabled (see
+ * {@link SpiderServlet#setPageCacheSize(int)}) the response is then cached and
+ * served without creating the task.
+ * <p>
+ *
+ * Only responses with status 200 that set no cookies are cached. If several requests
+ * for the same page arrive while it is not cached, only one of them renders it and the
+ * others wait for the result.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface PageCache {
+
+	/** @return the number of seconds the response may be served from the cache; the same unit as {@link CacheableEmbeddedRenderTask#getCacheTtl()} */
+	int ttl();
+
+	/** @return the names of the methods of the {@link Input} interface of the task the response depends on */
+	String[] params() default {};
+
+	/** @return the names of the cookies the response depends on */
+	String[] cookies() default {};
+
+}
@@ -0,0 +1,233 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.medallia.tiny.Empty;
+
+/**
+ * Response that passes everything on to the wrapped response, and also keeps a copy
+ * of the content type, headers and body so that the response can be served again
+ * from the {@link PageCache}. The copy is discarded if the response is one that
+ * should not be cached, e.g. if it sets a cookie or redirects.
+ */
+class PageCaptureResponse extends HttpServletResponseWrapper {
+
+	/** responses with a larger body than this are not cached */
+	private static final int MAX_CACHED_BYTES = 1024 * 1024;
+
+	/** Header set on the response */
+	private static class Header {
+		private final boolean add;
+		private final String name;
+		private final String value;
+		private Header(boolean add, String name, String value) {
+			this.add = add;
+			this.name = name;
+			this.value = value;
+		}
+	}
+
+	/** A captured response */
+	static class CachedPage {
+		private final String contentType;
+		private final List<Header> headers;
+		private final byte[] body;
+		private CachedPage(String contentType, List<Header> headers, byte[] body) {
+			this.contentType = contentType;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		/** @return the value of the last captured header with the given name, or null if there is none */
+		String getHeader(String name) {
+			String value = null;
+			for (Header h : headers) {
+				if (h.name.equalsIgnoreCase(name))
+					value = h.value;
+			}
+			return value;
+		}
+
+		/** write the captured response to the given response */
+		void writeTo(HttpServletResponse res) throws IOException {
+			for (Header h : headers) {
+				if (h.add)
+					res.addHeader(h.name, h.value);
+				else
+					res.setHeader(h.name, h.value);
+			}
+			if (contentType != null)
+				res.setContentType(contentType);
+			res.setContentLength(body.length);
+			res.getOutputStream().write(body);
+		}
+	}
+
+	private boolean cacheable = true;
+	private String contentType;
+	private final List<Header> headers = Empty.list();
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private ServletOutputStream out;
+
+	/** @param res the response to pass everything on to */
+	PageCaptureResponse(HttpServletResponse res) {
+		super(res);
+	}
+
+	/** @return the captured response, or null if it should not be cached */
+	CachedPage getCachedPage() {
+		return cacheable ? new CachedPage(contentType, headers, body.toByteArray()) : null;
+	}
+
+	private void notCacheable() {
+		cacheable = false;
+		body.reset();
+	}
+
+	private void capture(byte[] b, int off, int len) {
+		if (!cacheable)
+			return;
+		if (body.size() + len > MAX_CACHED_BYTES)
+			notCacheable();
+		else
+			body.write(b, off, len);
+	}
+
+	@Override public ServletOutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			final ServletOutputStream real = super.getOutputStream();
+			out = new ServletOutputStream() {
+				@Override public void write(int b) throws IOException {
+					real.write(b);
+					capture(new byte[] { (byte) b }, 0, 1);
+				}
+				@Override public void write(byte[] b, int off, int len) throws IOException {
+					real.write(b, off, len);
+					capture(b, off, len);
+				}
+				@Override public void flush() throws IOException {
+					real.flush();
+				}
+				@Override public void close() throws IOException {
+					real.close();
+				}
+			};
+		}
+		return out;
+	}
+
+	@Override public PrintWriter getWriter() throws IOException {
+		// only the output stream is captured
+		notCacheable();
+		return super.getWriter();
+	}
+
+	@Override public void setContentType(String type) {
+		contentType = type;
+		super.setContentType(type);
+	}
+
+	@Override public void setHeader(String name, String value) {
+		header(false, name, value);
+		super.setHeader(name, value);
+	}
+
+	@Override public void addHeader(String name, String value) {
+		header(true, name, value);
+		super.addHeader(name, value);
+	}
+
+	@Override public void setIntHeader(String name, int value) {
+		header(false, name, String.valueOf(value));
+		super.setIntHeader(name, value);
+	}
+
+	@Override public void addIntHeader(String name, int value) {
+		header(true, name, String.valueOf(value));
+		super.addIntHeader(name, value);
+	}
+
+	private void header(boolean add, String name, String value) {
+		if ("Set-Cookie".equalsIgnoreCase(name))
+			notCacheable();
+		else if (cacheable)
+			headers.add(new Header(add, name, value));
+	}
+
+	@Override public void setDateHeader(String name, long date) {
+		notCacheable();
+		super.setDateHeader(name, date);
+	}
+
+	@Override public void addDateHeader(String name, long date) {
+		notCacheable();
+		super.addDateHeader(name, date);
+	}
+
+	@Override public void addCookie(Cookie cookie) {
+		notCacheable();
+		super.addCookie(cookie);
+	}
+
+	@Override public void setStatus(int sc) {
+		if (sc != SC_OK)
+			notCacheable();
+		super.setStatus(sc);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override public void setStatus(int sc, String sm) {
+		notCacheable();
+		super.setStatus(sc, sm);
+	}
+
+	@Override public void sendError(int sc) throws IOException {
+		notCacheable();
+		super.sendError(sc);
+	}
+
+	@Override public void sendError(int sc, String msg) throws IOException {
+		notCacheable();
+		super.sendError(sc, msg);
+	}
+
+	@Override public void sendRedirect(String location) throws IOException {
+		notCacheable();
+		super.sendRedirect(location);
+	}
+
+	@Override public void reset() {
+		notCacheable();
+		super.reset();
+	}
+
+	@Override public void resetBuffer() {
+		notCacheable();
+		super.resetBuffer();
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.medallia.tiny.Clock;
+
+/**
+ * Cache of rendered content shared by all requests. Each entry expires after the
+ * time to live given when it was added, and when the cache is full the least
+ * recently used entry is evicted.
+ * <p>
+ *
+ * The number of hits, misses and evictions are counted so that the effect of the
+ * cache can be monitored.
+ *
+ * @param <V> the type of the cached content
+ */
+public class RenderCache<V> {
+
+	/** Cached value and the time it expires */
+	private static class CachedValue<V> {
+		private final V value;
+		private final long expires;
+		private CachedValue(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxEntries;
+	/** guarded by itself; in access order so the eldest entry is the least recently used */
+	private final LinkedHashMap<String, CachedValue<V>> map;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** @param maxEntries the maximum number of entries held */
+	public RenderCache(int maxEntries) {
+		if (maxEntries <= 0)
+			throw new IllegalArgumentException("maxEntries must be a positive number: " + maxEntries);
+		this.maxEntries = maxEntries;
+		this.map = new LinkedHashMap<String, CachedValue<V>>(16, 0.75f, true) {
+			@Override protected boolean removeEldestEntry(Map.Entry<String, CachedValue<V>> eldest) {
+				if (size() <= RenderCache.this.maxEntries)
+					return false;
+				evictions.incrementAndGet();
+				return true;
+			}
+		};
+	}
+
+	/** @return the value cached for the given key, or null if there is none or it has expired */
+	public V get(String key) {
+		CachedValue<V> e;
+		synchronized (map) {
+			e = map.get(key);
+			if (e != null && e.expires <= Clock.timeMillis()) {
+				map.remove(key);
+				e = null;
+			}
+		}
+		if (e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return e.value;
+	}
+
+	/** cache the given value for the given number of milliseconds */
+	public void put(String key, V value, long ttlMillis) {
+		if (ttlMillis <= 0)
+			return;
+		CachedValue<V> e = new CachedValue<V>(value, Clock.timeMillis() + ttlMillis);
+		synchronized (map) {
+			map.put(key, e);
+		}
+	}
+
+	/** remove all entries; the counters are not reset */
+	public void clear() {
+		synchronized (map) {
+			map.clear();
+		}
+	}
+
+	/** @return the number of entries, including any that have expired but not yet been removed */
+	public int size() {
+		synchronized (map) {
+			return map.size();
+		}
+	}
+
+	/** @return the number of lookups that found a value */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** @return the number of lookups that did not find a value */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** @return the number of entries removed to make room for new ones */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "RenderCache[size=" + size() + ", max=" + maxEntries + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+
+}
@@ -16,17 +16,37 @@
  */
 package com.medallia.spider;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import javax.servlet.ServletConfig;
@@ -34,24 +54,39 @@ import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
 import org.antlr.stringtemplate.AutoIndentWriter;
 import org.antlr.stringtemplate.StringTemplate;
-import org.antlr.stringtemplate.StringTemplateGroup;
 import org.antlr.stringtemplate.StringTemplateWriter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.medallia.spider.EmbeddedTaskGraph.EmbeddedRenderer;
+import com.medallia.spider.EmbeddedTaskGraph.Node;
+import com.medallia.spider.MethodInvoker.Invokable;
+import com.medallia.spider.MethodInvoker.LifecycleHandlerCache;
 import com.medallia.spider.MethodInvoker.LifecycleHandlerSet;
+import com.medallia.spider.PageCaptureResponse.CachedPage;
+import com.medallia.spider.StaticResources.ModifiableResource;
+import com.medallia.spider.StaticResources.PreloadedResource;
+import com.medallia.spider.StaticResources.SizedResource;
 import com.medallia.spider.StaticResources.StaticResource;
 import com.medallia.spider.StaticResources.StaticResourceLookup;
 import com.medallia.spider.Task.CustomPostAction;
+import com.medallia.spider.TaskRoutes.TaskRouteTable;
+import com.medallia.spider.api.DynamicInputImpl;
+import com.medallia.spider.api.DynamicInputImpl.InputKey;
+import com.medallia.spider.api.DynamicInputImpl.InputParsers;
+import com.medallia.spider.api.DynamicInputImpl.ParsedInputs;
 import com.medallia.spider.api.StRenderable;
 import com.medallia.spider.api.StRenderer;
 import com.medallia.spider.api.StRenderable.PostAction;
 import com.medallia.spider.api.StRenderer.InputArgParser;
+import com.medallia.spider.api.StRenderer.PrecompilingStringTemplateFactory;
 import com.medallia.spider.api.StRenderer.StRenderPostAction;
+import com.medallia.spider.api.StRenderer.StStreamPostAction;
 import com.medallia.spider.api.StRenderer.StToolProvider;
 import com.medallia.spider.api.StRenderer.StringTemplateFactory;
 import com.medallia.spider.sttools.CachedTool;
@@ -59,11 +94,14 @@ import com.medallia.spider.sttools.StTool;
 import com.medallia.spider.test.RenderTaskTestCase;
 import com.medallia.tiny.Clock;
 import com.medallia.tiny.Empty;
+import com.medallia.tiny.Encoding;
 import com.medallia.tiny.Implement;
 import com.medallia.tiny.ObjectProvider;
+import com.medallia.tiny.Rethrow;
 import com.medallia.tiny.Strings;
 import com.medallia.tiny.string.ExplodingStringTemplateErrorListener;
 import com.medallia.tiny.string.HtmlString;
+import com.medallia.tiny.string.PrecompilingStringTemplateGroup;
 import com.medallia.tiny.web.HttpHeaders;
 
 /**
@@ -138,7 +176,9 @@ import com.medallia.tiny.web.HttpHeaders;
  * 
  * Spider solves this problem by dependency injecting the needed services; the dependencies are thus
  * documented simply as a list of arguments. See {@link StRenderable} for more docs. The objects available
- * for injection can be registered by overriding {@link #registerObjects(ObjectProvider)}.
+ * for injection can be registered by overriding {@link #registerApplicationObjects(ObjectProvider)}, which
+ * is called once when the servlet starts, and {@link #registerObjects(ObjectProvider, RequestHandler)},
+ * which is called for each request.
  * <p>
  *  
  * <b> M-V-C separation <br>
@@ -183,10 +223,15 @@ import com.medallia.tiny.web.HttpHeaders;
 public abstract class SpiderServlet extends HttpServlet {
 	private static Log log;
 	
-	private final StaticResourceLookup staticResourceLookup;
+	/** the static resources in the class path; preloaded into memory unless in debug mode, see {@link #setDebugMode(boolean)} */
+	private StaticResourceLookup classPathResourceLookup;
+	/** the resources served from memory mapped files; null if none, see {@link #setAssetPack(File)} */
+	private AssetPack assetPack;
+	/** used to find static resources, first in the asset pack and then in the class path */
+	private volatile StaticResourceLookup staticResourceLookup;
 	
 	/** Used to render page.st */
-	private final StringTemplateGroup pageStGroup;
+	private final PrecompilingStringTemplateGroup pageStGroup;
 	/** Used to render the .st files for {@link RenderTask} and {@link EmbeddedRenderTask} */
 	private final StringTemplateFactory stringTemplateFactory;
 	
@@ -195,11 +240,20 @@ public abstract class SpiderServlet extends HttpServlet {
 	
 	/** constructor that creates the initial state */
 	public SpiderServlet() {
-		staticResourceLookup = StaticResources.makeStaticResourceLookup(getServletClass());
 		stTools = buildStToolsMap();
-		pageStGroup = new StringTemplateGroup("PageStGroup") {
+		pageStGroup = new PrecompilingStringTemplateGroup("PageStGroup") {
+			/** cache of the paths to the templates, so the class path need not be searched each time a template is read */
+			private final ConcurrentMap<String, String> templatePaths = Empty.concurrentMap();
 			@Override public String getFileNameFromTemplateName(String name) {
-				return super.getFileNameFromTemplateName(findPathForTemplate(name));
+				String path = templatePaths.get(name);
+				if (path == null) {
+					path = findPathForTemplate(name);
+					templatePaths.put(name, path);
+				}
+				return super.getFileNameFromTemplateName(path);
+			}
+			@Override protected void clearTemplateLocations() {
+				templatePaths.clear();
 			}
 			@Override public StringTemplate getEmbeddedInstanceOf(StringTemplate enclosingInstance, String name) throws IllegalArgumentException {
 				final StTool t = getStTool(name);
@@ -262,8 +316,18 @@ public abstract class SpiderServlet extends HttpServlet {
 		void removeCookieValue(String name);
 	}
 
-	/** Register the objects that should be available for dependency injection. The
-	 * {@link ObjectProvider#register(Object)} method is typically used.
+	/** Register the objects that should be available for dependency injection in all requests, e.g.
+	 * services created when the servlet starts. This method is called once from
+	 * {@link #init(ServletConfig)}, after which the given ObjectProvider is frozen and shared
+	 * by all requests. The {@link ObjectProvider#register(Object)} method is typically used.
+	 */
+	protected void registerApplicationObjects(ObjectProvider injector) { }
+
+	/** Register the objects bound to the given request that should be available for dependency
+	 * injection. This method is called each time a task is constructed or its action method is
+	 * invoked, so objects that are the same for all requests should be registered in
+	 * {@link #registerApplicationObjects(ObjectProvider)} instead. The {@link RequestHandler}
+	 * is registered by default.
 	 */
 	protected void registerObjects(ObjectProvider injector, RequestHandler request) { }
 	
@@ -271,15 +335,17 @@ public abstract class SpiderServlet extends HttpServlet {
 
 	/** Register any custom request parameter parsers. The method
 	 * {@link StRenderer#registerArgParser(Class, InputArgParser)
-	 * should be used for this.
+	 * should be used for this. The method is called once, when the parsers are first needed;
+	 * the given renderer is only used to collect the parsers.
 	 */
 	protected void registerInputArgParser(StRenderer renderer) { }
 	
 	private Boolean debugMode;
 
-	/** Set the debug mode on or off. In debug mode the .st files are re-read on each
-	 * request and error messages and stack traces may be printed on the rendered
-	 * page.
+	/** Set the debug mode on or off. In debug mode the .st files and static resources are
+	 * re-read on each request and error messages and stack traces may be printed on the
+	 * rendered page. Otherwise the static resources are read into memory when the debug
+	 * mode is set, and the .st files are loaded by {@link #init(ServletConfig)}.
 	 * 
 	 * The default is true.
 	 * 
@@ -291,15 +357,321 @@ public abstract class SpiderServlet extends HttpServlet {
 		int refreshInterval = debugMode ? 0 : Integer.MAX_VALUE / 1000;
 		pageStGroup.setRefreshInterval(refreshInterval);
 		stringTemplateFactory.setRefreshInterval(refreshInterval);
+		try {
+			classPathResourceLookup = debugMode ? StaticResources.makeStaticResourceLookup(getServletClass())
+					: StaticResources.makePreloadedStaticResourceLookup(getServletClass());
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read static resources for " + getServletClass(), e);
+		}
+		updateStaticResourceLookup();
+	}
+
+	/** Set the file of an {@link AssetPack} with static resources which are too large to hold
+	 * on the Java heap, e.g. audio, video or large scripts. The resources in the pack are served
+	 * from memory mapped buffers, and are used instead of any static resources with the same
+	 * name in the class path.
+	 * 
+	 * The default is null, which means that no asset pack is used.
+	 * 
+	 * @param f the file built by {@link AssetPack#build(File, File)}, or null
+	 */
+	protected void setAssetPack(File f) throws IOException {
+		AssetPack old = assetPack;
+		assetPack = f == null ? null : AssetPack.open(f);
+		updateStaticResourceLookup();
+		// the mapped content stays valid, so requests that are being served are not affected
+		if (old != null)
+			old.close();
+	}
+
+	private void updateStaticResourceLookup() {
+		AssetPack pack = assetPack;
+		staticResourceLookup = pack == null ? classPathResourceLookup : StaticResources.makeAssetPackLookup(pack, classPathResourceLookup);
+	}
+	
+	private boolean streamingRender;
+
+	/** Set the streaming render mode on or off. In streaming mode the template of a page is
+	 * written directly to the response as it is rendered, instead of first being rendered into
+	 * a String which is then inserted into page.st. This bounds the memory used to render large
+	 * pages, but an error while rendering is only detected after part of the page has been sent.
+	 * 
+	 * The default is false.
+	 * 
+	 * @param b true if streaming render mode should be turned on, false otherwise
+	 */
+	protected void setStreamingRender(boolean b) {
+		streamingRender = b;
 	}
 	
-	/** sets up the logging; this is done here instead of in the constructor to give subclasses
-	 * a chance to configure log4j.
+	private boolean pageRevalidation;
+
+	/** Set the page revalidation mode on or off. In this mode the content rendered by an
+	 * {@link IRenderTask} or {@link IAjaxRenderTask} is sent with an ETag computed from the
+	 * content, and a request with a matching If-None-Match header gets a 304 (Not Modified)
+	 * response without a body. This saves bandwidth for clients that poll for content which
+	 * rarely changes, but the content must be fully rendered before anything is sent, so
+	 * {@link #setStreamingRender(boolean)} then only reduces the memory used for the page body.
+	 * A task that implements {@link VersionedRenderTask} can avoid both by giving the version
+	 * of its content, which is then checked before the task is rendered.
+	 * 
+	 * The default is false.
+	 * 
+	 * @param b true if page revalidation mode should be turned on, false otherwise
+	 */
+	protected void setPageRevalidation(boolean b) {
+		pageRevalidation = b;
+	}
+	
+	private volatile int compressionLevel;
+	private volatile int compressionMinSize;
+
+	/** Set the compression of the responses of tasks. If the client accepts it, a text response
+	 * which is at least the given number of bytes is compressed with gzip as it is sent. This
+	 * includes pages, ajax responses and text sent by a {@link Task.BinaryDataPostAction}, e.g.
+	 * {@link Task#rawStringUtf8(String)}. Static resources are compressed once when they are
+	 * preloaded instead; see {@link #setDebugMode(boolean)}.
+	 * 
+	 * The default level is 0, which means that responses are not compressed.
+	 * 
+	 * @param level the compression level, from 1 (fastest) to 9 (smallest), or 0 to turn compression off
+	 * @param minSize the number of bytes a response must have to be compressed; smaller responses
+	 * are not made smaller enough to make up for the cost of compressing them
+	 */
+	protected void setResponseCompression(int level, int minSize) {
+		if (level < 0 || level > 9)
+			throw new IllegalArgumentException("level must be between 0 and 9: " + level);
+		compressionLevel = level;
+		compressionMinSize = minSize;
+	}
+	
+	/** executor used to render embedded tasks; null if they are rendered on the request thread */
+	private volatile ThreadPoolExecutor embeddedRenderExecutor;
+
+	/** Set the number of threads used to render the {@link EmbeddedRenderTask} objects of a
+	 * page concurrently. Independent embedded tasks are then rendered in parallel while the
+	 * page task runs, and the page only waits for the content of an embedded task when it is
+	 * written. If the threads are all busy an embedded task is rendered by the thread that
+	 * would have queued it.
+	 * <p>
+	 * 
+	 * Note that the action methods of the embedded tasks, and any lifecycle handlers registered
+	 * by {@link #registerLifecycleHandlers(LifecycleHandlerSet, RequestHandler)}, are then called
+	 * on other threads than the request thread. An embedded task may thus run after the page has
+	 * started to be sent, e.g. with {@link #setStreamingRender(boolean)}, and changes it makes to
+	 * the response, such as cookies set with {@link RequestHandler}, are then lost; a warning is
+	 * logged for such cookies. Embedded tasks which set cookies should be rendered serially.
+	 * <p>
+	 * 
+	 * The default is 0, which means that the embedded tasks are rendered one at a time on the
+	 * request thread before the page task.
+	 * 
+	 * @param threads the maximum number of threads, shared by all requests
+	 */
+	protected void setEmbeddedRenderThreads(int threads) {
+		ThreadPoolExecutor old = embeddedRenderExecutor;
+		embeddedRenderExecutor = threads > 0 ? makeEmbeddedRenderExecutor(threads) : null;
+		if (old != null)
+			old.shutdown();
+	}
+
+	private static ThreadPoolExecutor makeEmbeddedRenderExecutor(int threads) {
+		final AtomicInteger threadNum = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 16),
+			new ThreadFactory() {
+				@Implement public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "EmbeddedRender-" + threadNum.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			},
+			new RejectedExecutionHandler() {
+				@Implement public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					// also when shut down, since the request is waiting for the result
+					r.run();
+				}
+			});
+	}
+
+	/** stops the threads used to render embedded tasks and closes the asset pack */
+	@Override
+	public void destroy() {
+		setEmbeddedRenderThreads(0);
+		try {
+			setAssetPack(null);
+		} catch (IOException e) {
+			log.warn("Could not close asset pack", e);
+		}
+		super.destroy();
+	}
+
+	/** cache of the content of {@link CacheableEmbeddedRenderTask} objects, along with the content of
+	 * the tasks they depend on, by class of the task; null if disabled */
+	private volatile RenderCache<Map<Class<?>, String>> fragmentCache;
+
+	/** Set the maximum number of fragments held by the cache used for the content of
+	 * {@link CacheableEmbeddedRenderTask} objects. When the cache is full the least recently
+	 * used fragment is evicted.
+	 * 
+	 * The default is 0, which means that the cache is disabled.
+	 */
+	protected void setFragmentCacheSize(int maxEntries) {
+		fragmentCache = maxEntries > 0 ? new RenderCache<Map<Class<?>, String>>(maxEntries) : null;
+	}
+
+	/** @return the cache used for the content of {@link CacheableEmbeddedRenderTask} objects, e.g. to
+	 * monitor the hit rate, or null if it is disabled */
+	protected RenderCache<Map<Class<?>, String>> getFragmentCache() {
+		return fragmentCache;
+	}
+
+	/** cache of the responses of tasks annotated with {@link PageCache}; null if disabled */
+	private volatile RenderCache<CachedPage> pageCache;
+	/** the pages being rendered for the page cache, by key */
+	private final ConcurrentMap<String, FutureTask<CachedPage>> pageRenders = Empty.concurrentMap();
+
+	/** Set the maximum number of responses held by the cache used for tasks annotated
+	 * with {@link PageCache}. When the cache is full the least recently used response
+	 * is evicted.
+	 * 
+	 * The default is 0, which means that the cache is disabled.
+	 */
+	protected void setPageCacheSize(int maxEntries) {
+		pageCache = maxEntries > 0 ? new RenderCache<CachedPage>(maxEntries) : null;
+	}
+
+	/** @return the cache used for tasks annotated with {@link PageCache}, e.g. to monitor the
+	 * hit rate, or null if it is disabled */
+	protected RenderCache<?> getPageCache() {
+		return pageCache;
+	}
+
+	/** the objects registered in {@link #registerApplicationObjects(ObjectProvider)}; set in {@link #init(ServletConfig)} */
+	private ObjectProvider applicationObjects;
+
+	/** sets up the logging, the task route table and the application objects; this is done here
+	 * instead of in the constructor to give subclasses a chance to configure log4j.
 	 */
 	@Override
 	public void init(ServletConfig cfg) throws ServletException {
 		log = LogFactory.getLog(getServletClass());
+		taskRoutes = TaskRoutes.makeTaskRouteTable(taskPackage, getServletClass().getClassLoader());
 		super.init(cfg);
+		
+		ObjectProvider injector = new ObjectProvider();
+		registerApplicationObjects(injector);
+		applicationObjects = injector.freeze();
+		
+		if (!debugMode)
+			precompileTemplates();
+		ready = true;
+	}
+
+	/** true once {@link #init(ServletConfig)} has completed */
+	private volatile boolean ready;
+
+	/**
+	 * @return true once the servlet has been initialized, which outside debug mode includes
+	 * loading all the .st files; a health check can use this to keep requests away until then.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Load the .st files of page.st and of the tasks in parallel, so that the first request
+	 * for each page does not have to parse them, and so that an invalid template stops the
+	 * servlet from starting instead of failing the request.
+	 */
+	private void precompileTemplates() throws ServletException {
+		ClassLoader cl = getServletClass().getClassLoader();
+		Map<String, Callable<Void>> jobs = Empty.linkedHashMap();
+		try {
+			// the templates used by page.st, from the servlet class and its superclasses
+			Class<?> c = getServletClass();
+			while (c != null) {
+				List<String> files = TaskRoutes.listResources(c.getPackage().getName().replace('.', '/') + "/st", cl);
+				for (String name : getTemplateNames(files)) {
+					final URL url = cl.getResource(findPathForTemplate(name) + ".st");
+					final String templateName = name;
+					if (!jobs.containsKey("st/" + name)) {
+						jobs.put("st/" + name, new Callable<Void>() {
+							@Implement public Void call() throws IOException {
+								pageStGroup.precompile(templateName, url);
+								return null;
+							}
+						});
+					}
+				}
+				if (c == SpiderServlet.class)
+					break;
+				c = c.getSuperclass();
+			}
+			
+			// the templates of the tasks; these are cached on their name only, so a name used
+			// both for a page and for an embedded task is left to be loaded when it is used
+			if (stringTemplateFactory instanceof PrecompilingStringTemplateFactory) {
+				PrecompilingStringTemplateFactory factory = (PrecompilingStringTemplateFactory) stringTemplateFactory;
+				String taskPath = taskPackage.substring(0, taskPackage.length() - 1).replace('.', '/');
+				List<String> pages = getTemplateNames(TaskRoutes.listResources(taskPath + "/pages", cl));
+				List<String> embedded = getTemplateNames(TaskRoutes.listResources(taskPath + "/embedded", cl));
+				for (String name : pages) {
+					if (embedded.remove(name))
+						log.warn("Not precompiling template " + name + " since it exists both in pages/ and embedded/; it is loaded when first used");
+					else
+						addTaskTemplateJob(jobs, factory, cl.getResource(taskPath + "/pages/" + name + ".st"), "pages/", name);
+				}
+				// the names in both directories were removed above
+				for (String name : embedded)
+					addTaskTemplateJob(jobs, factory, cl.getResource(taskPath + "/embedded/" + name + ".st"), "embedded/", name);
+			}
+		} catch (IOException e) {
+			throw new ServletException("Could not list the templates of " + getServletClass(), e);
+		}
+		if (jobs.isEmpty())
+			return;
+
+		long nt = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs.size(), Runtime.getRuntime().availableProcessors()));
+		try {
+			Map<String, Future<Void>> futures = Empty.linkedHashMap();
+			for (Map.Entry<String, Callable<Void>> e : jobs.entrySet())
+				futures.put(e.getKey(), executor.submit(e.getValue()));
+			for (Map.Entry<String, Future<Void>> e : futures.entrySet()) {
+				try {
+					e.getValue().get();
+				} catch (ExecutionException ex) {
+					throw new ServletException("Invalid template " + e.getKey(), ex.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServletException("Interrupted while loading templates");
+		} finally {
+			executor.shutdownNow();
+		}
+		log.info("Loaded " + jobs.size() + " templates in " + TimeUnit.MILLISECONDS.convert(System.nanoTime() - nt, TimeUnit.NANOSECONDS) + " ms");
+	}
+
+	private static void addTaskTemplateJob(Map<String, Callable<Void>> jobs, final PrecompilingStringTemplateFactory factory, final URL url, String dir, final String name) {
+		jobs.put(dir + name, new Callable<Void>() {
+			@Implement public Void call() throws IOException {
+				factory.precompile(name, url);
+				return null;
+			}
+		});
+	}
+
+	/** @return the names of the templates among the given file names, which may be null */
+	private static List<String> getTemplateNames(List<String> files) {
+		List<String> l = Empty.list();
+		if (files != null) {
+			for (String f : files) {
+				if (f.endsWith(".st"))
+					l.add(f.substring(0, f.length() - ".st".length()));
+			}
+		}
+		return l;
 	}
 
 	/** Forwards to {@link #handleRequest(HttpServletRequest, HttpServletResponse)} */
@@ -353,16 +725,6 @@ public abstract class SpiderServlet extends HttpServlet {
 		w.flush();
 	}
 
-	/** an {@link EmbeddedRenderTask} and the {@link PostAction} it returned */
-	private static class EmbeddedContent {
-		private final EmbeddedRenderTask embeddedTask;
-		private final StRenderPostAction postAction;
-		public EmbeddedContent(EmbeddedRenderTask embeddedTask, StRenderPostAction postAction) {
-			this.embeddedTask = embeddedTask;
-			this.postAction = postAction;
-		}
-	}
-
 	/** Parse the URI and forward the request to the appropriate task */
 	protected void handleInternal(HttpServletRequest req, HttpServletResponse res) throws IOException {
 		String uri = getUriForRequest(req);
@@ -370,12 +732,11 @@ public abstract class SpiderServlet extends HttpServlet {
 			res.sendRedirect("/" + getDefaultURI());
 			return;
 		}
-		if (serveStatic(uri, res)) return;
+		if (serveStatic(uri, req, res)) return;
 		log.info("Serving URI: " + uri + (debugMode ? " [debug mode]" : ""));
 		
-		RequestHandler request = makeRequest(req, res);
-		ITask t = findTask(uri, request);
-		if (t == null) {
+		Invokable<? extends ITask> cons = findTaskConstructor(uri);
+		if (cons == null) {
 			log.info("No task found, sending to default URI");
 			res.sendRedirect(getDefaultURI());
 			return;
@@ -383,12 +744,169 @@ public abstract class SpiderServlet extends HttpServlet {
 		
 		@SuppressWarnings("unchecked")
 		Map<String, String[]> reqParams = req.getParameterMap();
+		// values parsed from reqParams, shared by the task and its embedded tasks
+		ParsedInputs parsedInputs = new ParsedInputs();
 		
-		List<EmbeddedContent> embeddedContent = Empty.list();
-		for (EmbeddedRenderTask ert : t.dependsOn())
-			renderEmbedded(ert, reqParams, request, embeddedContent);
+		if (compressionLevel > 0 && HttpHeaders.acceptsGzip(req)) {
+			CompressingResponse compressing = new CompressingResponse(res, compressionLevel, compressionMinSize);
+			try {
+				try {
+					serveTask(cons, req, reqParams, parsedInputs, compressing);
+				} catch (Throwable t) {
+					// the error page replaces the body, which may already have been compressed in part
+					compressing.abort();
+					handleException(req, compressing, t);
+				}
+			} finally {
+				compressing.finish();
+			}
+		} else {
+			serveTask(cons, req, reqParams, parsedInputs, res);
+		}
+	}
 
-		renderFinal(t, req, reqParams, request, embeddedContent, res);
+	/** serve the response from the page cache if the task is cached, otherwise render it */
+	private void serveTask(Invokable<? extends ITask> cons, HttpServletRequest req, Map<String, String[]> reqParams, ParsedInputs parsedInputs, HttpServletResponse res) throws IOException {
+		PageCache policy = cons.getDeclaringClass().getAnnotation(PageCache.class);
+		if (policy != null && pageCache != null && "GET".equals(req.getMethod()))
+			handleCached(cons, policy, req, reqParams, parsedInputs, res);
+		else
+			handleTask(cons, req, reqParams, parsedInputs, res);
+	}
+
+	/** serve the response from the page cache if possible, otherwise render it and cache it */
+	private void handleCached(final Invokable<? extends ITask> cons, PageCache policy, final HttpServletRequest req, final Map<String, String[]> reqParams, final ParsedInputs parsedInputs, HttpServletResponse res) throws IOException {
+		RenderCache<CachedPage> cache = pageCache;
+		String key = makePageCacheKey(cons.getDeclaringClass(), policy, req, reqParams, parsedInputs);
+		CachedPage page = cache.get(key);
+		if (page == null) {
+			final PageCaptureResponse capture = new PageCaptureResponse(res);
+			// a 304 response cannot be cached, so the full page is always rendered
+			final HttpServletRequest fullReq = new HttpServletRequestWrapper(req) {
+				@Override public String getHeader(String name) {
+					return "If-None-Match".equalsIgnoreCase(name) ? null : super.getHeader(name);
+				}
+			};
+			FutureTask<CachedPage> f = new FutureTask<CachedPage>(new Callable<CachedPage>() {
+				@Implement public CachedPage call() throws Exception {
+					handleTask(cons, fullReq, reqParams, parsedInputs, capture);
+					return capture.getCachedPage();
+				}
+			});
+			FutureTask<CachedPage> inFlight = pageRenders.putIfAbsent(key, f);
+			if (inFlight == null) {
+				// this request renders the page; other requests for it wait for the result
+				try {
+					f.run();
+				} finally {
+					pageRenders.remove(key, f);
+				}
+				page = getRenderedPage(f, true);
+				if (page != null)
+					cache.put(key, page, policy.ttl() * 1000L);
+				return;
+			}
+			page = getRenderedPage(inFlight, false);
+			if (page == null) {
+				// the response could not be cached, so it is rendered again for this request
+				handleTask(cons, req, reqParams, parsedInputs, res);
+				return;
+			}
+		}
+		HttpHeaders.addNoCacheHeaders(res);
+		String etag = page.getHeader("ETag");
+		if (etag != null && HttpHeaders.isNotModified(req, etag)) {
+			res.setHeader("ETag", etag);
+			res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		page.writeTo(res);
+	}
+
+	/** @return the result of the given render; any exception is thrown if the flag is set, otherwise null is returned */
+	private CachedPage getRenderedPage(FutureTask<CachedPage> f, boolean throwException) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for page");
+		} catch (ExecutionException e) {
+			if (throwException)
+				throw Rethrow.uncheckedThrow(e.getCause());
+			return null;
+		}
+	}
+
+	/** @return the key of the page cache entry for the given request */
+	private String makePageCacheKey(Class<?> taskClass, PageCache policy, HttpServletRequest req, Map<String, String[]> reqParams, ParsedInputs parsedInputs) {
+		StringBuilder sb = new StringBuilder(taskClass.getName());
+		if (policy.params().length > 0) {
+			DynamicInputImpl input = new DynamicInputImpl(reqParams, getInputParsers(), parsedInputs);
+			for (String name : policy.params()) {
+				InputKey k = StRenderer.findInputKey(taskClass, name);
+				if (k == null)
+					throw new RuntimeException("No method " + name + " in the Input interface of " + taskClass);
+				Object v = input.getInput(k);
+				appendKeyPart(sb, name, Arrays.deepToString(new Object[] { v }));
+			}
+		}
+		if (policy.cookies().length > 0) {
+			Map<String, String> cookies = Empty.hashMap();
+			Cookie[] cs = req.getCookies();
+			if (cs != null) {
+				for (Cookie c : cs)
+					addCookie(cookies, c);
+			}
+			for (String name : policy.cookies())
+				appendKeyPart(sb, name, String.valueOf(cookies.get(name)));
+		}
+		return sb.toString();
+	}
+
+	/** append the given part; the length is included so that the key is unambiguous */
+	private static void appendKeyPart(StringBuilder sb, String name, String value) {
+		sb.append('&').append(name).append('=').append(value.length()).append(':').append(value);
+	}
+
+	/** the parsers registered by {@link #registerInputArgParser(StRenderer)}, merged with the built-in parsers */
+	private volatile InputParsers inputParsers;
+
+	private InputParsers getInputParsers() {
+		InputParsers p = inputParsers;
+		if (p == null) {
+			// the renderer is only used to collect the parsers
+			StRenderer r = makeRenderer(null, null, "pages/");
+			registerInputArgParser(r);
+			inputParsers = p = new InputParsers(r.getArgParsers());
+		}
+		return p;
+	}
+
+	/** create the task and render it, along with its embedded tasks */
+	private void handleTask(Invokable<? extends ITask> cons, HttpServletRequest req, Map<String, String[]> reqParams, ParsedInputs parsedInputs, HttpServletResponse res) throws IOException {
+		RequestHandler request = makeRequest(req, res);
+		ITask t = new MethodInvoker(makeObjectProvider(request), makeLifecycleHandlerSet(request)).invoke(cons, null);
+		
+		String versionETag = null;
+		if (pageRevalidation && t instanceof VersionedRenderTask) {
+			String version = ((VersionedRenderTask) t).getVersion(makeRenderer(t, null, "pages/").makeDynamicInput(reqParams, parsedInputs), request);
+			if (version != null) {
+				versionETag = "\"" + Encoding.md5(version) + "\"";
+				if (HttpHeaders.isNotModified(req, versionETag)) {
+					HttpHeaders.addNoCacheHeaders(res);
+					res.setHeader("ETag", versionETag);
+					res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return;
+				}
+			}
+		}
+
+		EmbeddedTaskGraph embedded = new EmbeddedTaskGraph(t.dependsOn());
+		renderEmbedded(embedded, reqParams, parsedInputs, request);
+
+		renderFinal(t, req, reqParams, parsedInputs, request, embedded, versionETag, res);
+		// errors in embedded tasks not used by the page must not be lost
+		embedded.await();
 	}
 
 	/** @return the URI requested by the given HttpServletRequest */
@@ -397,7 +915,8 @@ public abstract class SpiderServlet extends HttpServlet {
 	}
 
 	private RequestHandler makeRequest(HttpServletRequest req, final HttpServletResponse response) {
-		final Map<String, String> m = Empty.hashMap();
+		// synchronized since embedded tasks may be rendered concurrently
+		final Map<String, String> m = Empty.synchronizedMap();
 		Cookie[] cookies = req.getCookies();
 		if (cookies != null) {
 			for (Cookie c : cookies) {
@@ -425,7 +944,12 @@ public abstract class SpiderServlet extends HttpServlet {
 				storeCookie(c);
 			}
 			private void storeCookie(Cookie c) {
-				response.addCookie(c);
+				synchronized (response) {
+					// only possible when embedded tasks are rendered concurrently; see setEmbeddedRenderThreads
+					if (response.isCommitted())
+						log.warn("Cookie " + c.getName() + " is not sent since the response is already committed");
+					response.addCookie(c);
+				}
 				addCookie(m, c);
 			}
 			private Cookie makeCookie(String name, String value) {
@@ -438,29 +962,103 @@ public abstract class SpiderServlet extends HttpServlet {
 		m.put(c.getName(), c.getValue());
 	}
 
-	/** render the given embedded task (recursively) */
-	private void renderEmbedded(EmbeddedRenderTask t, Map<String, String[]> reqParams, RequestHandler request, List<EmbeddedContent> embeddedContent) {
-		for (EmbeddedRenderTask ert : t.dependsOn())
-			renderEmbedded(ert, reqParams, request, embeddedContent);
-
-		PostAction po = render(t, reqParams, request, null, "embedded/");
-		if (po instanceof StRenderPostAction)
-			embeddedContent.add(new EmbeddedContent(t, (StRenderPostAction) po));
+	/** render the given embedded tasks; see {@link #setEmbeddedRenderThreads(int)} */
+	private void renderEmbedded(EmbeddedTaskGraph embedded, final Map<String, String[]> reqParams, final ParsedInputs parsedInputs, final RequestHandler request) {
+		final RenderCache<Map<Class<?>, String>> cache = fragmentCache;
+		// the fragment cache keys of the tasks that were not cached, by class of the task
+		final Map<Class<?>, String> cacheKeys = Empty.concurrentMap();
+		EmbeddedRenderer r = new EmbeddedRenderer() {
+			@Implement public Map<Class<?>, String> getCached(EmbeddedRenderTask t) {
+				if (cache == null || !(t instanceof CacheableEmbeddedRenderTask))
+					return null;
+				String k = ((CacheableEmbeddedRenderTask) t).getCacheKey(makeRenderer(t, null, "embedded/").makeDynamicInput(reqParams, parsedInputs), request);
+				if (k == null)
+					return null;
+				String cacheKey = t.getClass().getName() + "/" + k;
+				Map<Class<?>, String> contents = cache.get(cacheKey);
+				if (contents == null)
+					cacheKeys.put(t.getClass(), cacheKey);
+				return contents;
+			}
+			@Implement public String render(EmbeddedRenderTask t) {
+				return renderEmbedded(t, reqParams, parsedInputs, request);
+			}
+			@Implement public void putCached(EmbeddedRenderTask t, Map<Class<?>, String> contents) {
+				String cacheKey = cacheKeys.get(t.getClass());
+				if (cacheKey != null)
+					cache.put(cacheKey, Collections.unmodifiableMap(contents), ((CacheableEmbeddedRenderTask) t).getCacheTtl() * 1000L);
+			}
+		};
+		Executor executor = embeddedRenderExecutor;
+		if (executor == null)
+			embedded.renderSerially(r);
 		else
+			embedded.renderConcurrently(r, executor);
+	}
+
+	/** @return the content of the given embedded task */
+	private String renderEmbedded(EmbeddedRenderTask t, Map<String, String[]> reqParams, ParsedInputs parsedInputs, RequestHandler request) {
+		PostAction po = render(makeRenderer(t, null, "embedded/"), t, reqParams, parsedInputs, request);
+		if (!(po instanceof StRenderPostAction))
 			throw new RuntimeException("EmbeddedRenderTask returned unsupported PostAction " + po);
+		return ((StRenderPostAction) po).getStContent();
 	}
 
-	
 	private final Date boot = Clock.now();
 	
 	/** serve static resources, e.g. images and css that do not have any dynamic component */
-	private boolean serveStatic(String uri, HttpServletResponse res) throws IOException {
+	private boolean serveStatic(String uri, HttpServletRequest req, HttpServletResponse res) throws IOException {
 		StaticResource staticResource = staticResourceLookup.findStaticResource(uri);
 		if (staticResource != null) {
 			if (staticResource.exists()) {
+				String contentEncoding = null;
+				if (staticResource instanceof PreloadedResource) {
+					PreloadedResource gzipped = ((PreloadedResource) staticResource).getGzipped();
+					if (gzipped != null) {
+						// caches must not give the compressed content to clients that do not accept it
+						res.setHeader("Vary", "Accept-Encoding");
+						if (HttpHeaders.acceptsGzip(req)) {
+							contentEncoding = "gzip";
+							staticResource = gzipped;
+						}
+					}
+				}
 				res.setHeader("Content-Type", staticResource.getMimeType());
-				res.setDateHeader("Date", boot.getTime());				
 				HttpHeaders.addCacheForeverHeaders(res);
+				
+				// resources which are not read on each request cannot change after startup
+				long lastModified = staticResource instanceof ModifiableResource ? ((ModifiableResource) staticResource).getLastModified() : 0;
+				if (lastModified <= 0)
+					lastModified = boot.getTime();
+				res.setDateHeader("Last-Modified", lastModified);
+				String etag = null;
+				if (staticResource instanceof SizedResource) {
+					etag = "\"" + ((SizedResource) staticResource).getFingerprint() + "\"";
+					res.setHeader("ETag", etag);
+				}
+				// If-Modified-Since is only used if there is no If-None-Match
+				boolean notModified = (etag != null && req.getHeader("If-None-Match") != null) ? HttpHeaders.isNotModified(req, etag) : HttpHeaders.isNotModifiedSince(req, lastModified);
+				if (notModified) {
+					res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return true;
+				}
+				
+				if (contentEncoding != null)
+					res.setHeader("Content-Encoding", contentEncoding);
+				
+				if (staticResource instanceof SizedResource) {
+					SizedResource sized = (SizedResource) staticResource;
+					res.setHeader("Accept-Ranges", "bytes");
+					List<ByteRange> ranges = isRangeApplicable(req, etag, lastModified) ? ByteRange.parse(req.getHeader("Range"), sized.getLength()) : null;
+					if (ranges != null) {
+						serveRanges(sized, ranges, req, res);
+						return true;
+					}
+					setContentLength(res, sized.getLength());
+					// the body of the response to a HEAD request is discarded
+					if ("HEAD".equals(req.getMethod()))
+						return true;
+				}
 				staticResource.copyTo(res.getOutputStream());
 			} else {
 				res.sendError(404);
@@ -472,8 +1070,86 @@ public abstract class SpiderServlet extends HttpServlet {
 		}
 	}
 	
+	/** @return true if the Range header of the request should be used for the resource with the given ETag and modification time */
+	private static boolean isRangeApplicable(HttpServletRequest req, String etag, long lastModified) {
+		if (req.getHeader("Range") == null || !("GET".equals(req.getMethod()) || "HEAD".equals(req.getMethod())))
+			return false;
+		// If-Range gives the version the client has the rest of; if it has changed the whole resource is sent
+		String ifRange = req.getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return ifRange.equals(etag);
+		try {
+			long t = req.getDateHeader("If-Range");
+			return t >= 0 && lastModified / 1000 == t / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/** random prefix of the boundaries of multipart responses, so that they are unlikely to occur in the content */
+	private final String boundaryPrefix = Long.toHexString(new SecureRandom().nextLong());
+	/** number of multipart responses sent, which makes each boundary unique */
+	private final AtomicLong boundaryCount = new AtomicLong();
+
+	/** send the given ranges of the resource, as a multipart response if there are several */
+	private void serveRanges(SizedResource r, List<ByteRange> ranges, HttpServletRequest req, HttpServletResponse res) throws IOException {
+		long length = r.getLength();
+		if (ranges.isEmpty()) {
+			res.setHeader("Content-Range", "bytes */" + length);
+			res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+		boolean head = "HEAD".equals(req.getMethod());
+		res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		if (ranges.size() == 1) {
+			ByteRange range = ranges.get(0);
+			res.setHeader("Content-Range", range.getContentRange(length));
+			setContentLength(res, range.getLength());
+			if (!head)
+				r.copyTo(res.getOutputStream(), range.start, range.getLength());
+			return;
+		}
+
+		String boundary = boundaryPrefix + "-" + boundaryCount.incrementAndGet();
+		res.setHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+		// the length of the body is computed up front so that it can be sent
+		byte[][] partHeaders = new byte[ranges.size()][];
+		byte[] end = Encoding.getUTF8Bytes("\r\n--" + boundary + "--\r\n");
+		long total = end.length;
+		for (int i = 0; i < partHeaders.length; i++) {
+			ByteRange range = ranges.get(i);
+			partHeaders[i] = Encoding.getUTF8Bytes((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+					+ "Content-Type: " + r.getMimeType() + "\r\n"
+					+ "Content-Range: " + range.getContentRange(length) + "\r\n\r\n");
+			total += partHeaders[i].length + range.getLength();
+		}
+		setContentLength(res, total);
+		if (head)
+			return;
+		OutputStream out = res.getOutputStream();
+		for (int i = 0; i < partHeaders.length; i++) {
+			ByteRange range = ranges.get(i);
+			out.write(partHeaders[i]);
+			r.copyTo(out, range.start, range.getLength());
+		}
+		out.write(end);
+	}
+
+	/** set the Content-Length header, which may be larger than an int */
+	private static void setContentLength(HttpServletResponse res, long length) {
+		if (length <= Integer.MAX_VALUE)
+			res.setContentLength((int) length);
+		else
+			res.setHeader("Content-Length", String.valueOf(length));
+	}
+	
 	private final String taskPackage = findTaskPackage(getServletClass());
 	
+	/** map from task name to the task class constructor; built in {@link #init(ServletConfig)} */
+	private TaskRouteTable taskRoutes;
+	
 	/** @return the name of the package where task classes are assumed to be */
 	private String findTaskPackage(Class<? extends SpiderServlet> clazz) {
 		Class<?> p = clazz;
@@ -487,37 +1163,25 @@ public abstract class SpiderServlet extends HttpServlet {
 		return SpiderServlet.class;
 	}
 
-	/** @return an instance of the task the given URI maps to, or null if no such class exists */
-	private ITask findTask(String uri, RequestHandler request) {
+	/** @return the constructor of the task class the given URI maps to, or null if no such class exists */
+	private Invokable<? extends ITask> findTaskConstructor(String uri) {
 		String tn = extractTaskName(uri);
-		if (tn != null) {
-			String cn = taskPackage + tn;
-			Class<?> c;
-			try {
-				c = Class.forName(cn);
-			} catch (ClassNotFoundException e) {
-				throw new RuntimeException("No class " + cn);
-			}
-			if (c != null && ITask.class.isAssignableFrom(c)) {
-				@SuppressWarnings({"unchecked"})
-				Constructor<ITask>[] consArr = (Constructor<ITask>[]) c.getConstructors();
-				if (consArr.length != 1)
-					throw new RuntimeException("Class " + c + " must have exactly one constructor");
-				return new MethodInvoker(makeObjectProvider(request), makeLifecycleHandlerSet(request)).invoke(consArr[0]);
-			}
-		}
-		return null;
+		return tn == null ? null : taskRoutes.findTaskConstructor(tn);
 	}
 	
 	/** @return an instance of ObjectProvider with all the objects that are available for dependency injection */
 	private ObjectProvider makeObjectProvider(RequestHandler request) {
-		ObjectProvider injector = new ObjectProvider();
+		ObjectProvider injector = applicationObjects.makeChild();
+		injector.register(RequestHandler.class, request);
 		registerObjects(injector, request);
 		return injector;
 	}
 	
+	/** the handlers found for the arguments of the tasks, see {@link #registerLifecycleHandlers(LifecycleHandlerSet, RequestHandler)} */
+	private final LifecycleHandlerCache lifecycleHandlerCache = new LifecycleHandlerCache();
+	
 	private LifecycleHandlerSet makeLifecycleHandlerSet(RequestHandler request) {
-		LifecycleHandlerSet hs = MethodInvoker.getLifecycleHandlerSet();
+		LifecycleHandlerSet hs = MethodInvoker.getLifecycleHandlerSet(lifecycleHandlerCache);
 		registerLifecycleHandlers(hs, request);
 		return hs;
 	}
@@ -534,7 +1198,11 @@ public abstract class SpiderServlet extends HttpServlet {
 	
 	private Map<String, StTool> buildStToolsMap() {
 		Map<String, StTool> m = Empty.hashMap();
-		m.put("cached", new CachedTool(staticResourceLookup));
+		m.put("cached", new CachedTool(new StaticResourceLookup() {
+			@Implement public StaticResource findStaticResource(String name) {
+				return staticResourceLookup.findStaticResource(name);
+			}
+		}));
 		return m;
 	}
 
@@ -543,7 +1211,7 @@ public abstract class SpiderServlet extends HttpServlet {
 		return stTools.get(name);
 	}
 
-	/** @return the path to the StringTemplate with the given name */
+	/** @return the path to the StringTemplate with the given name; the result is cached on the name */
 	protected String findPathForTemplate(String name) {
 		name = "st/" + name;
 		String path = name + ".st";
@@ -560,41 +1228,83 @@ public abstract class SpiderServlet extends HttpServlet {
 		throw new RuntimeException("Cannot find template " + name);
 	}
 	
-	/** render the given task and write the output to the response */
-	private void renderFinal(ITask t, HttpServletRequest req, Map<String, String[]> reqParams, RequestHandler request, List<EmbeddedContent> embeddedContent, HttpServletResponse res) throws IOException {
-		PostAction po = render(t, reqParams, request, embeddedContent, "pages/");
+	/** render the given task and write the output to the response; the ETag is null unless it is given by a {@link VersionedRenderTask} */
+	private void renderFinal(ITask t, HttpServletRequest req, Map<String, String[]> reqParams, ParsedInputs parsedInputs, RequestHandler request, EmbeddedTaskGraph embedded, String versionETag, HttpServletResponse res) throws IOException {
+		PostAction po = render(t, reqParams, parsedInputs, request, embedded, "pages/");
 		
 		if (po instanceof CustomPostAction) {
 			((CustomPostAction)po).respond(req, res);
 			
-		} else if (po instanceof StRenderPostAction) {
-			String stContent = ((StRenderPostAction)po).getStContent();
+		} else if (po instanceof StRenderPostAction || po instanceof StStreamPostAction) {
 			HttpHeaders.addNoCacheHeaders(res);
-			Writer w = getUtf8Writer(res);
-			try {
-				if (t instanceof IAjaxRenderTask) {
-					IOHelpers.copy(new StringReader(stContent), w);
+			if (versionETag != null)
+				res.setHeader("ETag", versionETag);
+			if (pageRevalidation && versionETag == null) {
+				// the page must be rendered before the ETag can be computed
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				Writer w = new OutputStreamWriter(buf, Encoding.CHARSET_UTF8_NAME);
+				try {
+					writeStContent(t, po, embedded, w);
+				} finally {
+					w.close();
+				}
+				byte[] content = buf.toByteArray();
+				String etag = "\"" + Encoding.md5(content) + "\"";
+				res.setHeader("ETag", etag);
+				if (HttpHeaders.isNotModified(req, etag)) {
+					res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				} else {
+					res.setContentType("text/html; charset=utf-8");
+					res.setContentLength(content.length);
+					res.getOutputStream().write(content);
+				}
+			} else {
+				Writer w = getUtf8Writer(res);
+				try {
+					writeStContent(t, po, embedded, w);
+				} finally {
+					w.close();
+				}
+			}
+		}
+	}
 
-				} else if (t instanceof IRenderTask) {
-					IRenderTask rt = (IRenderTask) t;
+	/** write the content rendered by the given task; if it is a page it is inserted into page.st */
+	private void writeStContent(ITask t, PostAction po, EmbeddedTaskGraph embedded, Writer w) throws IOException {
+		if (t instanceof IAjaxRenderTask) {
+			if (po instanceof StStreamPostAction)
+				((StStreamPostAction)po).write(new AutoIndentWriter(w));
+			else
+				IOHelpers.copy(new StringReader(((StRenderPostAction)po).getStContent()), w);
 
-					StringTemplate pageSt = pageStGroup.getInstanceOf("page");
-					pageSt.setAttribute("pagetitle", rt.getPageTitle());
-					pageSt.setAttribute("body", unsafeHtmlString(stContent));
+		} else if (t instanceof IRenderTask) {
+			IRenderTask rt = (IRenderTask) t;
 
-					addEmbedded(embeddedContent, pageSt);
+			StringTemplate pageSt = pageStGroup.getInstanceOf("page");
+			pageSt.setAttribute("pagetitle", rt.getPageTitle());
+			if (po instanceof StStreamPostAction)
+				pageSt.setAttribute("body", streamingStringTemplate((StStreamPostAction)po));
+			else
+				pageSt.setAttribute("body", unsafeHtmlString(((StRenderPostAction)po).getStContent()));
 
-					pageSt.write(new AutoIndentWriter(w));
+			addEmbedded(embedded, pageSt);
 
-				} else {
-					throw new RuntimeException("Task " + t + " is of unknown type");
-				}
-			} finally {
-				w.close();
-			}
+			pageSt.write(new AutoIndentWriter(w));
+
+		} else {
+			throw new RuntimeException("Task " + t + " is of unknown type");
 		}
 	}
 
+	/** @return a StringTemplate that, when written as an attribute of another template, renders the given PostAction */
+	private StringTemplate streamingStringTemplate(final StStreamPostAction po) {
+		return new StringTemplate() {
+			@Override public int write(StringTemplateWriter out) throws IOException {
+				return po.write(out);
+			}
+		};
+	}
+
 	/** @return a Writer that writes UTF-8 to the given response */
 	protected Writer getUtf8Writer(HttpServletResponse res) throws IOException {
 		res.setContentType("text/html; charset=utf-8");
@@ -606,7 +1316,22 @@ public abstract class SpiderServlet extends HttpServlet {
 	private static final Pattern CLASS_NAME_PREFIX_PATTERN = Pattern.compile(".*\\.(.+)Task.*");
 
 	/** @return the PostAction returned from {@link StRenderer#actionAndRender(ObjectProvider, Map)} on the given task */
-	private PostAction render(ITask t, Map<String, String[]> reqParams, RequestHandler request, final List<EmbeddedContent> embeddedContent, final String relativeTemplatePath) {
+	private PostAction render(ITask t, Map<String, String[]> reqParams, ParsedInputs parsedInputs, RequestHandler request, EmbeddedTaskGraph embedded, String relativeTemplatePath) {
+		return render(makeRenderer(t, embedded, relativeTemplatePath), t, reqParams, parsedInputs, request);
+	}
+
+	/** @return the PostAction returned from {@link StRenderer#actionAndRender(ObjectProvider, Map)} on the given renderer */
+	private PostAction render(StRenderer renderer, ITask t, Map<String, String[]> reqParams, ParsedInputs parsedInputs, RequestHandler request) {
+		ObjectProvider injector = makeObjectProvider(request);
+
+		long nt = System.nanoTime();
+		PostAction po = renderer.actionAndRender(injector, makeLifecycleHandlerSet(request), reqParams, parsedInputs);
+		log.info("StRender of " + t.getClass().getSimpleName() + " in " + TimeUnit.MILLISECONDS.convert(System.nanoTime() - nt, TimeUnit.NANOSECONDS) + " ms");
+		return po;
+	}
+
+	/** @return a renderer for the given task; the content of the given embedded tasks, if any, is set as attributes on its template */
+	private StRenderer makeRenderer(ITask t, final EmbeddedTaskGraph embedded, final String relativeTemplatePath) {
 		StRenderer renderer = new StRenderer(stringTemplateFactory, t) {
 			@Override protected Pattern getClassNamePrefixPattern() {
 				return CLASS_NAME_PREFIX_PATTERN;
@@ -614,26 +1339,42 @@ public abstract class SpiderServlet extends HttpServlet {
 			@Override protected String getPageRelativePath() {
 				return relativeTemplatePath;
 			}
+			@Override protected InputParsers getInputParsers() {
+				return SpiderServlet.this.getInputParsers();
+			}
 			@Override protected String renderFinal(StringTemplate st) {
-				if (embeddedContent != null)
-					addEmbedded(embeddedContent, st);
+				if (embedded != null)
+					addEmbedded(embedded, st);
 				return super.renderFinal(st);
 			}
+			@Override protected int writeFinal(StringTemplate st, StringTemplateWriter out) throws IOException {
+				if (embedded != null)
+					addEmbedded(embedded, st);
+				return super.writeFinal(st, out);
+			}
+			@Override protected boolean isStreamingRender() {
+				// only the page itself is streamed; embedded tasks are rendered into Strings
+				return streamingRender && embedded != null;
+			}
 		};
-		registerInputArgParser(renderer);
-		
-		ObjectProvider injector = makeObjectProvider(request);
-
-		long nt = System.nanoTime();
-		PostAction po = renderer.actionAndRender(injector, makeLifecycleHandlerSet(request), reqParams);
-		log.info("StRender of " + t.getClass().getSimpleName() + " in " + TimeUnit.MILLISECONDS.convert(System.nanoTime() - nt, TimeUnit.NANOSECONDS) + " ms");
-		return po;
+		return renderer;
 	}
 	
-	private void addEmbedded(List<EmbeddedContent> embeddedContent, StringTemplate st) {
-		for (EmbeddedContent ec : embeddedContent) {
-			// The variables that went into stContent have already been escaped 
-			st.setAttribute(ec.embeddedTask.getStAttribute(), unsafeHtmlString(ec.postAction.getStContent()));
+	/** set the content of the given embedded tasks as attributes; tasks still being rendered are waited for when the attribute is written */
+	private void addEmbedded(EmbeddedTaskGraph embedded, StringTemplate st) {
+		for (final Node n : embedded.getNodes()) {
+			// The variables that went into the content have already been escaped 
+			if (n.isDone()) {
+				st.setAttribute(n.getTask().getStAttribute(), unsafeHtmlString(n.getContent()));
+			} else {
+				st.setAttribute(n.getTask().getStAttribute(), new StringTemplate() {
+					@Override public int write(StringTemplateWriter out) throws IOException {
+						String s = n.getContent();
+						out.write(s);
+						return s.length();
+					}
+				});
+			}
 		}
 	}
 
@@ -1,26 +1,61 @@
 package com.medallia.spider;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.GZIPOutputStream;
 
 import com.medallia.tiny.Empty;
+import com.medallia.tiny.Encoding;
 import com.medallia.tiny.Implement;
 import com.medallia.tiny.MimeType;
+import com.medallia.tiny.Rethrow;
 
 public class StaticResources {
-	
+
 	public interface StaticResourceLookup {
 		StaticResource findStaticResource(String name);
 	}
-	
+
 	public interface StaticResource {
 		boolean exists();
 		String getMimeType();
 		void copyTo(OutputStream stream) throws IOException;
 	}
-	
+
+	/** Static resource which is read each time it is used, and may change while the application is running */
+	public interface ModifiableResource extends StaticResource {
+		/** @return the time the resource was last modified, in milliseconds since the epoch, or 0 if unknown */
+		long getLastModified();
+	}
+
+	/** Static resource whose length and fingerprint are known without reading it */
+	public interface SizedResource extends StaticResource {
+		/** @return the number of bytes in the resource */
+		long getLength();
+		/** @return the MD5 of the content of the resource, in hex */
+		String getFingerprint();
+		/** write the given number of bytes of the content, starting at the given offset, to the given stream */
+		void copyTo(OutputStream stream, long offset, long length) throws IOException;
+	}
+
 	/** map from URI ending to resource path, i.e. package name. */
 	private static final Map<String, String> resourceMap = Empty.hashMap();
 	static {
@@ -35,22 +70,59 @@ public class StaticResources {
 				throw new AssertionError(s + " alreadys maps to " + old);
 		}
 	}
-	
+
+	/** @return the extension of the given URI, or null if it has none */
+	private static String getExtension(String uri) {
+		int k = uri.lastIndexOf('.');
+		return k > 0 ? uri.substring(k + 1) : null;
+	}
+
+	/** @return the name of the resource, relative to the resource path, the given URI refers to */
+	private static String getResourceName(String uri) {
+		int slashIndex = uri.indexOf('/');
+		return uri.substring(slashIndex < 0  ? 0 : slashIndex + 1, uri.length());
+	}
+
+	/**
+	 * @return a lookup which finds the resource in the given pack, and otherwise uses the given lookup;
+	 * the name of a resource in the pack is the URI without the leading slash
+	 */
+	public static StaticResourceLookup makeAssetPackLookup(final AssetPack pack, final StaticResourceLookup next) {
+		return new StaticResourceLookup() {
+			@Implement public StaticResource findStaticResource(String uri) {
+				StaticResource r = pack.getResource(getResourceName(uri));
+				return r != null ? r : next.findStaticResource(uri);
+			}
+		};
+	}
+
+	/** @return a lookup which reads the resource from the class path each time it is requested */
 	public static StaticResourceLookup makeStaticResourceLookup(final Class<?> clazz) {
 		return new StaticResourceLookup() {
 			@Implement public StaticResource findStaticResource(String uri) {
-				int k = uri.lastIndexOf('.');
-				if (k > 0) {
-					final String ext = uri.substring(k + 1);
+				final String ext = getExtension(uri);
+				if (ext != null) {
 					final String path = resourceMap.get(ext);
+					final String resourceName = getResourceName(uri);
+					final URL url = path != null ? clazz.getResource(path + "/" + resourceName) : null;
 
-					int slashIndex = uri.indexOf('/');
-					final String resourceName = uri.substring(slashIndex < 0  ? 0 : slashIndex + 1, uri.length());
-					final InputStream in = path != null ? clazz.getResourceAsStream(path + "/" + resourceName) : null;
-					
-					return new StaticResource() {
+					return new ModifiableResource() {
 						@Implement public boolean exists() {
-							return in != null;
+							return url != null;
+						}
+						@Implement public long getLastModified() {
+							if (!exists())
+								return 0;
+							try {
+								URLConnection conn = url.openConnection();
+								// finding the time opens the resource, which must then be closed
+								conn.setUseCaches(false);
+								long t = conn.getLastModified();
+								conn.getInputStream().close();
+								return t;
+							} catch (IOException e) {
+								return 0;
+							}
 						}
 						@Implement public String getMimeType() {
 							return MimeType.getMimeTypeForExtension(ext);
@@ -58,7 +130,12 @@ public class StaticResources {
 						@Implement public void copyTo(OutputStream stream) throws IOException {
 							if (!exists())
 								throw new RuntimeException("Resource " + resourceName + " in " + path + " for " + clazz + " not found");
-							IOHelpers.copy(in, stream);
+							InputStream in = url.openStream();
+							try {
+								IOHelpers.copy(in, stream);
+							} finally {
+								in.close();
+							}
 						}
 					};
 				}
@@ -66,5 +143,224 @@ public class StaticResources {
 			}
 		};
 	}
-	
+
+	/** Static resource held in memory */
+	public static class PreloadedResource implements SizedResource {
+		private final String mimeType;
+		private final byte[] content;
+		private final String fingerprint;
+		private final PreloadedResource gzipped;
+		private PreloadedResource(String mimeType, byte[] content, PreloadedResource gzipped) {
+			this.mimeType = mimeType;
+			this.content = content;
+			this.fingerprint = Encoding.md5(content);
+			this.gzipped = gzipped;
+		}
+		/** @return the content compressed with gzip, or null if compressing it does not make it smaller */
+		public PreloadedResource getGzipped() {
+			return gzipped;
+		}
+		@Implement public boolean exists() {
+			return true;
+		}
+		@Implement public String getMimeType() {
+			return mimeType;
+		}
+		@Implement public long getLength() {
+			return content.length;
+		}
+		@Implement public String getFingerprint() {
+			return fingerprint;
+		}
+		@Implement public void copyTo(OutputStream stream) throws IOException {
+			stream.write(content);
+		}
+		@Implement public void copyTo(OutputStream stream, long offset, long length) throws IOException {
+			stream.write(content, (int) offset, (int) length);
+		}
+	}
+
+	/**
+	 * @return a lookup which reads all the resources in the resource paths below the package
+	 * of the given class into memory when it is created. A resource which is added later is
+	 * not found, so this should not be used if the resources can change while the application
+	 * is running.
+	 * <p>
+	 *
+	 * Only resources in a directory or jar file can be listed; if a resource path is found
+	 * elsewhere its resources are read from the class path each time they are requested.
+	 */
+	public static StaticResourceLookup makePreloadedStaticResourceLookup(Class<?> clazz) throws IOException {
+		final StaticResourceLookup fallback = makeStaticResourceLookup(clazz);
+		Map<String, byte[]> contents = Empty.hashMap();
+		final Set<String> unlistedPaths = Empty.hashSet();
+		for (String path : Empty.hashSet(resourceMap.values())) {
+			if (!preload(clazz, path, contents))
+				unlistedPaths.add(path);
+		}
+		final Map<String, PreloadedResource> preloaded = Collections.unmodifiableMap(makePreloadedResources(contents));
+		final StaticResource missing = new StaticResource() {
+			@Implement public boolean exists() {
+				return false;
+			}
+			@Implement public String getMimeType() {
+				throw new RuntimeException("Resource not found");
+			}
+			@Implement public void copyTo(OutputStream stream) throws IOException {
+				throw new RuntimeException("Resource not found");
+			}
+		};
+		return new StaticResourceLookup() {
+			@Implement public StaticResource findStaticResource(String uri) {
+				String ext = getExtension(uri);
+				if (ext == null)
+					return null;
+				String path = resourceMap.get(ext);
+				if (path == null || unlistedPaths.contains(path))
+					return fallback.findStaticResource(uri);
+				StaticResource r = preloaded.get(path + "/" + getResourceName(uri));
+				return r != null ? r : missing;
+			}
+		};
+	}
+
+	/**
+	 * Read the content of the resources with an extension mapped to the given path into the given map, keyed on
+	 * the path of the resource relative to the package of the given class.
+	 *
+	 * @return false if the resources of the path could not be listed
+	 */
+	private static boolean preload(Class<?> clazz, String path, Map<String, byte[]> resources) throws IOException {
+		String pkg = clazz.getPackage() == null ? "" : clazz.getPackage().getName().replace('.', '/') + "/";
+		// the class file is used to find the directory or jar file since directory entries are optional in jar files
+		URL classUrl = clazz.getResource(clazz.getName().substring(clazz.getName().lastIndexOf('.') + 1) + ".class");
+		if (classUrl == null)
+			return false;
+
+		if ("file".equals(classUrl.getProtocol())) {
+			File dir;
+			try {
+				dir = new File(new File(classUrl.toURI()).getParentFile(), path);
+			} catch (URISyntaxException e) {
+				return false;
+			}
+			// the resources may be in another class path entry than the class
+			if (!dir.isDirectory())
+				return false;
+			preloadDirectory(dir, path, path, resources);
+			return true;
+
+		} else if ("jar".equals(classUrl.getProtocol())) {
+			URLConnection conn = classUrl.openConnection();
+			if (!(conn instanceof JarURLConnection))
+				return false;
+			conn.setUseCaches(false);
+			JarFile jar = ((JarURLConnection) conn).getJarFile();
+			int found = 0;
+			try {
+				String prefix = pkg + path + "/";
+				Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements()) {
+					JarEntry e = entries.nextElement();
+					if (!e.isDirectory() && e.getName().startsWith(prefix) && isMappedTo(e.getName(), path)) {
+						InputStream in = jar.getInputStream(e);
+						try {
+							resources.put(path + "/" + e.getName().substring(prefix.length()), readFully(in));
+							found++;
+						} finally {
+							in.close();
+						}
+					}
+				}
+			} finally {
+				jar.close();
+			}
+			return found > 0;
+		}
+		return false;
+	}
+
+	private static void preloadDirectory(File dir, String path, String name, Map<String, byte[]> resources) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("Could not list " + dir);
+		for (File f : files) {
+			String n = name + "/" + f.getName();
+			if (f.isDirectory()) {
+				preloadDirectory(f, path, n, resources);
+			} else if (isMappedTo(n, path)) {
+				InputStream in = f.toURI().toURL().openStream();
+				try {
+					resources.put(n, readFully(in));
+				} finally {
+					in.close();
+				}
+			}
+		}
+	}
+
+	/** @return true if the extension of the given name maps to the given path */
+	private static boolean isMappedTo(String name, String path) {
+		String ext = getExtension(name);
+		return ext != null && path.equals(resourceMap.get(ext));
+	}
+
+	/** @return the resources with the given content; the fingerprints and compressed content are computed in parallel */
+	private static Map<String, PreloadedResource> makePreloadedResources(Map<String, byte[]> contents) throws IOException {
+		Map<String, PreloadedResource> resources = Empty.hashMap();
+		if (contents.isEmpty())
+			return resources;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(contents.size(), Runtime.getRuntime().availableProcessors()));
+		try {
+			Map<String, Future<PreloadedResource>> futures = Empty.hashMap();
+			for (final Map.Entry<String, byte[]> e : contents.entrySet()) {
+				futures.put(e.getKey(), executor.submit(new Callable<PreloadedResource>() {
+					@Implement public PreloadedResource call() throws IOException {
+						return makePreloadedResource(e.getKey(), e.getValue());
+					}
+				}));
+			}
+			for (Map.Entry<String, Future<PreloadedResource>> e : futures.entrySet())
+				resources.put(e.getKey(), e.getValue().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while preloading static resources");
+		} catch (ExecutionException e) {
+			throw Rethrow.uncheckedThrow(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		return resources;
+	}
+
+	private static PreloadedResource makePreloadedResource(String name, byte[] content) throws IOException {
+		String mimeType = MimeType.getMimeTypeForExtension(getExtension(name));
+		PreloadedResource gzipped = null;
+		if (isCompressible(mimeType)) {
+			byte[] gz = gzip(content);
+			if (gz.length < content.length)
+				gzipped = new PreloadedResource(mimeType, gz, null);
+		}
+		return new PreloadedResource(mimeType, content, gzipped);
+	}
+
+	/** @return true if the given mime type is for text, e.g. css or js; images are already compressed */
+	private static boolean isCompressible(String mimeType) {
+		return mimeType.startsWith("text/") || mimeType.contains("javascript") || mimeType.contains("xml") || mimeType.contains("json");
+	}
+
+	private static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(buf);
+		out.write(content);
+		out.close();
+		return buf.toByteArray();
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		IOHelpers.copy(in, buf);
+		return buf.toByteArray();
+	}
+
 }
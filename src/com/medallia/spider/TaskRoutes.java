@@ -0,0 +1,198 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.medallia.spider.MethodInvoker.Invokable;
+import com.medallia.tiny.Empty;
+import com.medallia.tiny.Implement;
+
+/**
+ * Maps task names, e.g. 'FooTask', to the prepared constructor of the {@link ITask}
+ * class with that name in the task package of a {@link SpiderServlet}.
+ * <p>
+ *
+ * The task package is scanned once when the table is made, so routing a request is
+ * a single map lookup and an unknown name is answered without loading any classes or
+ * throwing any exceptions. If the package is located somewhere that cannot be scanned
+ * (i.e. not in a directory or a jar file) the classes are instead loaded on first use
+ * and the result, including a negative one, is cached.
+ */
+public class TaskRoutes {
+	private static final Log log = LogFactory.getLog(TaskRoutes.class);
+
+	/** maximum number of names cached when the task package cannot be scanned */
+	private static final int MAX_LAZY_ROUTES = 4096;
+
+	/** Object that maps a task name to the constructor of the task class */
+	public interface TaskRouteTable {
+		/** @return the constructor of the task class with the given name, or null if no such task exists */
+		Invokable<? extends ITask> findTaskConstructor(String taskName);
+	}
+
+	/** Entry in the table; the constructor is null for names known not to be tasks */
+	private static class TaskRoute {
+		private final Invokable<? extends ITask> cons;
+		private TaskRoute(Invokable<? extends ITask> cons) {
+			this.cons = cons;
+		}
+	}
+	private static final TaskRoute NO_ROUTE = new TaskRoute(null);
+
+	/**
+	 * @param taskPackage name of the package holding the task classes, including the trailing '.'
+	 * @param cl the class loader used to find and load the task classes
+	 * @return a table with all the task classes in the given package
+	 */
+	public static TaskRouteTable makeTaskRouteTable(String taskPackage, ClassLoader cl) {
+		List<String> taskNames;
+		try {
+			taskNames = findTaskNames(taskPackage, cl);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to scan task package " + taskPackage, e);
+		}
+		if (taskNames == null) {
+			log.warn("Cannot scan task package " + taskPackage + "; task classes will be loaded on demand");
+			return makeLazyTaskRouteTable(taskPackage, cl);
+		}
+
+		final Map<String, Invokable<? extends ITask>> m = Empty.hashMap();
+		for (String tn : taskNames) {
+			Invokable<? extends ITask> cons = loadTaskConstructor(taskPackage + tn, cl);
+			if (cons != null)
+				m.put(tn, cons);
+		}
+		log.info("Found " + m.size() + " tasks in " + taskPackage);
+		return new TaskRouteTable() {
+			@Implement public Invokable<? extends ITask> findTaskConstructor(String taskName) {
+				return m.get(taskName);
+			}
+		};
+	}
+
+	/** @return a table that loads each task class the first time its name is requested */
+	private static TaskRouteTable makeLazyTaskRouteTable(final String taskPackage, final ClassLoader cl) {
+		final ConcurrentMap<String, TaskRoute> m = Empty.concurrentMap();
+		return new TaskRouteTable() {
+			@Implement public Invokable<? extends ITask> findTaskConstructor(String taskName) {
+				TaskRoute r = m.get(taskName);
+				if (r == null) {
+					// bound the size since the names come straight from the request
+					if (m.size() >= MAX_LAZY_ROUTES)
+						m.clear();
+					Invokable<? extends ITask> cons = loadTaskConstructor(taskPackage + taskName, cl);
+					r = cons == null ? NO_ROUTE : new TaskRoute(cons);
+					m.put(taskName, r);
+				}
+				return r.cons;
+			}
+		};
+	}
+
+	/** @return the constructor of the given class, or null if the class does not exist or is not a task */
+	private static Invokable<? extends ITask> loadTaskConstructor(String cn, ClassLoader cl) {
+		Class<?> c;
+		try {
+			c = Class.forName(cn, false, cl);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (LinkageError e) {
+			log.warn("Cannot load class " + cn, e);
+			return null;
+		}
+		if (!ITask.class.isAssignableFrom(c) || c.isInterface() || Modifier.isAbstract(c.getModifiers()))
+			return null;
+
+		@SuppressWarnings({"unchecked"})
+		Constructor<? extends ITask>[] consArr = (Constructor<? extends ITask>[]) c.getConstructors();
+		if (consArr.length != 1)
+			throw new RuntimeException("Class " + c + " must have exactly one constructor");
+		return MethodInvoker.prepare(consArr[0]);
+	}
+
+	/** @return the simple names of the candidate task classes in the given package, or null if some location of the package cannot be scanned */
+	private static List<String> findTaskNames(String taskPackage, ClassLoader cl) throws IOException {
+		List<String> files = listResources(taskPackage.substring(0, taskPackage.length() - 1).replace('.', '/'), cl);
+		if (files == null)
+			return null;
+		List<String> l = Empty.list();
+		for (String f : files)
+			addTaskName(l, f);
+		return l;
+	}
+
+	/**
+	 * @param path the path of a package, e.g. "com/example/st"
+	 * @return the names of the files directly in the package, in all locations of it, or null
+	 * if some location of the package cannot be scanned
+	 */
+	static List<String> listResources(String path, ClassLoader cl) throws IOException {
+		List<String> l = Empty.list();
+		Enumeration<URL> urls = cl.getResources(path);
+		while (urls.hasMoreElements()) {
+			URL url = urls.nextElement();
+			if ("file".equals(url.getProtocol())) {
+				String[] files = new File(decodeUtf8Url(url.getPath())).list();
+				if (files != null)
+					l.addAll(Arrays.asList(files));
+			} else if ("jar".equals(url.getProtocol())) {
+				String prefix = path + "/";
+				for (JarEntry e : Collections.list(((JarURLConnection) url.openConnection()).getJarFile().entries())) {
+					String name = e.getName();
+					if (name.startsWith(prefix) && name.length() > prefix.length() && name.indexOf('/', prefix.length()) < 0)
+						l.add(name.substring(prefix.length()));
+				}
+			} else {
+				return null;
+			}
+		}
+		return l;
+	}
+
+	/** add the class name to the list if the given file name is that of a top level task class */
+	private static void addTaskName(List<String> l, String fileName) {
+		if (fileName.endsWith("Task.class") && fileName.indexOf('$') < 0)
+			l.add(fileName.substring(0, fileName.length() - ".class".length()));
+	}
+
+	private static String decodeUtf8Url(String string) {
+		try {
+			return URLDecoder.decode(string, "utf-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new AssertionError(ex);
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider;
+
+import com.medallia.spider.SpiderServlet.RequestHandler;
+import com.medallia.spider.api.StRenderable.DynamicInput;
+
+/**
+ * Interface for an {@link IRenderTask} or {@link IAjaxRenderTask} that knows the version
+ * of its content without rendering it, e.g. from the modification time of the data it shows.
+ * <p>
+ *
+ * If page revalidation is on (see {@link SpiderServlet#setPageRevalidation(boolean)}) the
+ * ETag of the response is computed from the version instead of the rendered content, and
+ * is checked before the task is rendered; a request whose If-None-Match header matches thus
+ * gets a 304 (Not Modified) response without running the action method, the template or
+ * the embedded tasks.
+ */
+public interface VersionedRenderTask extends ITask {
+
+	/**
+	 * @return a string that changes whenever the content rendered for this request changes,
+	 * or null if it is not known, in which case the ETag is computed from the content. The
+	 * version must include everything the content depends on, including embedded tasks.
+	 */
+	String getVersion(DynamicInput input, RequestHandler request);
+
+}
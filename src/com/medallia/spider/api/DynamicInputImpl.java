@@ -17,13 +17,21 @@
 package com.medallia.spider.api;
 
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.medallia.spider.api.StRenderable.DynamicInput;
 import com.medallia.spider.api.StRenderable.Input;
 import com.medallia.spider.api.StRenderer.InputArgParser;
+import com.medallia.tiny.Empty;
 import com.medallia.tiny.Implement;
 import com.medallia.tiny.Strings;
 
@@ -32,16 +40,130 @@ import com.medallia.tiny.Strings;
  */
 public class DynamicInputImpl implements DynamicInput {
 
+	/**
+	 * Values parsed from the input of one request. The same object can be given to
+	 * all the {@link DynamicInputImpl} objects made for the request, e.g. for the page
+	 * task and each of its embedded tasks, so that each value is only parsed once.
+	 */
+	public static class ParsedInputs {
+		/** marks a parsed value of null, which ConcurrentMap cannot hold */
+		private static final Object NULL = new Object();
+
+		private final ConcurrentMap<InputKey, Object> values = Empty.concurrentMap();
+	}
+
+	/**
+	 * Key for a parsed value; the same raw value may be parsed differently depending on the type
+	 * and annotations. The key for a method of an {@link Input} interface should be made once
+	 * with {@link #forMethod(Method)}, which returns the same object for equal keys, so that
+	 * looking up a parsed value only compares references.
+	 */
+	public static final class InputKey {
+		private final String name;
+		private final Class<?> type;
+		private final AnnotatedElement anno;
+		private final List<Annotation> annotations;
+		private final int hashCode;
+		private InputKey(String name, Class<?> type, AnnotatedElement anno) {
+			this.name = name;
+			this.type = type;
+			this.anno = anno;
+			Annotation[] annotations = anno.getAnnotations();
+			this.annotations = annotations == null ? Collections.<Annotation>emptyList() : Arrays.asList(annotations);
+			this.hashCode = name.hashCode() * 31 + type.hashCode();
+		}
+		/** @return the key for the values of the given method of an {@link Input} interface */
+		public static InputKey forMethod(Method m) {
+			InputKey k = new InputKey(m.getName(), m.getReturnType(), m);
+			synchronized (KEYS) {
+				WeakReference<InputKey> ref = KEYS.get(k);
+				InputKey old = ref == null ? null : ref.get();
+				if (old != null)
+					return old;
+				KEYS.put(k, new WeakReference<InputKey>(k));
+				return k;
+			}
+		}
+		@Override public int hashCode() {
+			return hashCode;
+		}
+		@Override public boolean equals(Object o) {
+			if (o == this) return true;
+			if (!(o instanceof InputKey)) return false;
+			InputKey k = (InputKey) o;
+			return name.equals(k.name) && type == k.type && annotations.equals(k.annotations);
+		}
+	}
+
+	/** the keys made by {@link InputKey#forMethod(Method)}; they are held weakly so that the classes can be unloaded */
+	private static final Map<InputKey, WeakReference<InputKey>> KEYS = new WeakHashMap<InputKey, WeakReference<InputKey>>();
+
+	/**
+	 * The parser for each type of input value: the built-in parsers merged with the registered
+	 * {@link InputArgParser} objects, so that parsing a value takes a single lookup. Parsers for
+	 * enum types are added when first used. An instance should be made once for a set of registered
+	 * parsers and shared by the {@link DynamicInputImpl} objects using them.
+	 * <p>
+	 *
+	 * The built-in parsers for int, Integer, String and enums are used even if another parser is
+	 * registered for the type. A parser registered for long or Long is used instead of the built-in one.
+	 */
+	public static class InputParsers {
+		private final ConcurrentMap<Class<?>, InputArgParser<?>> parsers = Empty.concurrentMap();
+
+		/** @param inputArgParsers any registered {@link InputArgParser} objects */
+		public InputParsers(Map<Class<?>, InputArgParser<?>> inputArgParsers) {
+			parsers.putAll(DEFAULT_PARSERS);
+			for (Map.Entry<Class<?>, InputArgParser<?>> e : inputArgParsers.entrySet()) {
+				// registered parsers have never been used for enums and arrays
+				Class<?> c = e.getKey();
+				if (!c.isEnum() && !c.isArray())
+					parsers.put(c, e.getValue());
+			}
+			parsers.putAll(BUILT_IN_PARSERS);
+		}
+
+		/** @return the parser for the given type, or null if there is none */
+		private InputArgParser<?> get(Class<?> rt) {
+			InputArgParser<?> p = parsers.get(rt);
+			if (p == null && rt.isEnum()) {
+				p = makeEnumParser(rt.asSubclass(Enum.class));
+				parsers.put(rt, p);
+			}
+			return p;
+		}
+	}
+
 	private final Map<String, String[]> inputParams;
-	private final Map<Class<?>, InputArgParser<?>> inputArgParsers;
+	private final InputParsers inputParsers;
+	private final ParsedInputs parsedInputs;
 
 	/**
 	 * @param inputParams the raw input values
 	 * @param inputArgParsers any registered {@link InputArgParser} objects
 	 */
 	public DynamicInputImpl(Map<String, String[]> inputParams, Map<Class<?>, InputArgParser<?>> inputArgParsers) {
+		this(inputParams, inputArgParsers, new ParsedInputs());
+	}
+
+	/**
+	 * @param inputParams the raw input values
+	 * @param inputArgParsers any registered {@link InputArgParser} objects
+	 * @param parsedInputs the values already parsed from the given input values
+	 */
+	public DynamicInputImpl(Map<String, String[]> inputParams, Map<Class<?>, InputArgParser<?>> inputArgParsers, ParsedInputs parsedInputs) {
+		this(inputParams, new InputParsers(inputArgParsers), parsedInputs);
+	}
+
+	/**
+	 * @param inputParams the raw input values
+	 * @param inputParsers the parsers to use
+	 * @param parsedInputs the values already parsed from the given input values
+	 */
+	public DynamicInputImpl(Map<String, String[]> inputParams, InputParsers inputParsers, ParsedInputs parsedInputs) {
 		this.inputParams = inputParams;
-		this.inputArgParsers = inputArgParsers;
+		this.inputParsers = inputParsers;
+		this.parsedInputs = parsedInputs;
 	}
 
 	@Implement public <X> X getInput(String name, Class<X> type) {
@@ -52,28 +174,58 @@ public class DynamicInputImpl implements DynamicInput {
 	 * Method used for parse values for the methods declared in {@link Input}.
 	 */
 	public <X> X getInput(String name, Class<X> type, AnnotatedElement anno) {
+		// Do not use Class.cast here since it does not work on primitive types
+		@SuppressWarnings("unchecked")
+		X x = (X) getInput(new InputKey(name, type, anno));
+		return x;
+	}
+
+	/** @return the value for the given key, which is parsed unless it has already been parsed for the request */
+	public Object getInput(InputKey k) {
+		Object v = parsedInputs.values.get(k);
+		if (v == null) {
+			v = parseInput(k.name, k.type, k.anno);
+			parsedInputs.values.put(k, v == null ? ParsedInputs.NULL : v);
+		} else if (v == ParsedInputs.NULL) {
+			v = null;
+		}
+		return copyIfArray(v);
+	}
+
+	/** @return a copy of the given object if it is an array, since the parsed values are shared */
+	static Object copyIfArray(Object o) {
+		if (o == null || !o.getClass().isArray())
+			return o;
+		if (o instanceof Object[])
+			return ((Object[]) o).clone();
+		if (o instanceof int[])
+			return ((int[]) o).clone();
+		if (o instanceof long[])
+			return ((long[]) o).clone();
+		int len = Array.getLength(o);
+		Object c = Array.newInstance(o.getClass().getComponentType(), len);
+		System.arraycopy(o, 0, c, 0, len);
+		return c;
+	}
+
+	/** @return the value of the given input parameter, parsed into the given type */
+	private Object parseInput(String name, Class<?> type, AnnotatedElement anno) {
 		if (type.isArray() && anno.isAnnotationPresent(Input.MultiValued.class)) {
 			// return type is an array; grab all
 			Object o = inputParams.get(name);
-			return type.cast(parseMultiValue(type, o, anno));
+			return parseMultiValue(type, o, anno);
 		}
 		
 		String v = Strings.extract(inputParams.get(name));
 		
 		// boolean is used for checkboxes, and false is encoded as a missing value
-		if (type == Boolean.class || type == Boolean.TYPE) {
-			@SuppressWarnings("unchecked")
-			X x = (X) Boolean.valueOf(v != null);
-			return x;
-		}
+		if (type == Boolean.class || type == Boolean.TYPE)
+			return Boolean.valueOf(v != null);
 		
 		// the remaining types have proper null values
 		if (v == null) return null;
 		
-		// Do not use Class.cast here since it does not work on primitive types
-		@SuppressWarnings("unchecked")
-		X x = (X) parseSingleValue(type, v, anno);
-		return x;
+		return parseSingleValue(type, v, anno);
 	}
 	
 	/**
@@ -93,41 +245,104 @@ public class DynamicInputImpl implements DynamicInput {
 			xs = new String[] { data.toString() };
 		}
 		
-		Class<?> comp = rt.getComponentType();
-		Object arr = Array.newInstance(rt.getComponentType(), xs.length);
-		for (int i=0; i < xs.length; i++) {
+		return parseArray(rt.getComponentType(), xs, anno);
+	}
+
+	/** @return an array of the given component type holding the given values parsed as per parseSingleValue */
+	private Object parseArray(Class<?> comp, String[] xs, AnnotatedElement anno) throws AssertionError {
+		if (comp == Integer.TYPE) {
+			int[] arr = new int[xs.length];
+			for (int i = 0; i < xs.length; i++)
+				arr[i] = Integer.parseInt(xs[i]);
+			return arr;
+		} else if (comp == Long.TYPE && inputParsers.get(Long.TYPE) == LONG_PARSER) {
+			long[] arr = new long[xs.length];
+			for (int i = 0; i < xs.length; i++)
+				arr[i] = Long.parseLong(xs[i]);
+			return arr;
+		} else if (!comp.isPrimitive()) {
+			Object[] arr = (Object[]) Array.newInstance(comp, xs.length);
+			for (int i = 0; i < xs.length; i++)
+				arr[i] = parseSingleValue(comp, xs[i], anno);
+			return arr;
+		}
+		Object arr = Array.newInstance(comp, xs.length);
+		for (int i = 0; i < xs.length; i++) {
 			Array.set(arr, i, parseSingleValue(comp, xs[i], anno));
 		}
 		return arr;
 	}
 
-	private Object parseSingleValue(Class<?> rt, String v, AnnotatedElement anno) throws AssertionError {
-		if (rt.isEnum()) {
-			String vlow = v.toLowerCase();
-			for (Enum e : rt.asSubclass(Enum.class).getEnumConstants()) {
-				if (e.name().toLowerCase().equals(vlow)) return e;
+	/** @return the given string split on the given literal separator; trailing empty strings are kept */
+	private static String[] splitLiteral(String v, String separator) {
+		if (separator.length() == 0)
+			throw new AssertionError("Empty separator for " + Input.List.class);
+		int n = 1;
+		for (int k = v.indexOf(separator); k >= 0; k = v.indexOf(separator, k + separator.length()))
+			n++;
+		String[] xs = new String[n];
+		int start = 0;
+		for (int i = 0; i < n - 1; i++) {
+			int end = v.indexOf(separator, start);
+			xs[i] = v.substring(start, end);
+			start = end + separator.length();
+		}
+		xs[n - 1] = v.substring(start);
+		return xs;
+	}
+
+	/** map from a type to the built-in parser for that type, which is used even if another parser is registered; see {@link InputParsers} for enums */
+	private static final Map<Class<?>, InputArgParser<?>> BUILT_IN_PARSERS = Empty.hashMap();
+	/** map from a type to the parser for that type if none is registered; these types used to need a registered parser */
+	private static final Map<Class<?>, InputArgParser<?>> DEFAULT_PARSERS = Empty.hashMap();
+	private static final InputArgParser<Long> LONG_PARSER = new InputArgParser<Long>() {
+		@Implement public Long parse(String str) {
+			return Long.valueOf(str);
+		}
+	};
+	static {
+		InputArgParser<Integer> intParser = new InputArgParser<Integer>() {
+			@Implement public Integer parse(String str) {
+				return Integer.valueOf(str);
+			}
+		};
+		BUILT_IN_PARSERS.put(Integer.class, intParser);
+		BUILT_IN_PARSERS.put(Integer.TYPE, intParser);
+		DEFAULT_PARSERS.put(Long.class, LONG_PARSER);
+		DEFAULT_PARSERS.put(Long.TYPE, LONG_PARSER);
+		BUILT_IN_PARSERS.put(String.class, new InputArgParser<String>() {
+			@Implement public String parse(String str) {
+				return str;
 			}
-			throw new AssertionError("Enum constant not found: " + v);
-		} else if (rt == Integer.class || rt == Integer.TYPE) {
-			return Integer.valueOf(v);
-		} else if (rt == String.class) {
-			return v;
+		});
+	}
+
+	/** @return parser for the given enum type; the constant names are matched ignoring case */
+	private static <E extends Enum> InputArgParser<E> makeEnumParser(Class<E> enumClass) {
+		final Map<String, E> m = Empty.hashMap();
+		for (E e : enumClass.getEnumConstants()) {
+			String k = e.name().toLowerCase();
+			// the first constant wins if several only differ in case
+			if (!m.containsKey(k))
+				m.put(k, e);
+		}
+		return new InputArgParser<E>() {
+			@Implement public E parse(String str) {
+				E e = m.get(str.toLowerCase());
+				if (e == null) throw new AssertionError("Enum constant not found: " + str);
+				return e;
+			}
+		};
+	}
+
+	private Object parseSingleValue(Class<?> rt, String v, AnnotatedElement anno) throws AssertionError {
+		InputArgParser<?> argParser = inputParsers.get(rt);
+		if (argParser != null) {
+			return argParser.parse(v);
 		} else if (rt.isArray()) {
 			Input.List ann = anno.getAnnotation(Input.List.class);
 			if (ann == null) throw new AssertionError("Array type but no annotation (see "+Input.class+"): "+anno);
-			String separator = ann.separator();
-			String[] strVals = v.split(separator, -1);
-			Class<?> arrayType = rt.getComponentType();
-			Object a = Array.newInstance(arrayType, strVals.length);
-			for (int i = 0; i < strVals.length; i++) {
-				Array.set(a, i, parseSingleValue(arrayType, strVals[i], anno));
-			}
-			return a;
-		} else {
-			InputArgParser<?> argParser = inputArgParsers.get(rt);
-			if (argParser != null) {
-				return argParser.parse(v);
-			}
+			return parseArray(rt.getComponentType(), splitLiteral(v, ann.separator()), anno);
 		}
 		throw new AssertionError("Unknown return type " + rt + " (val: " + v + ")");
 	}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of the Spider Web Framework.
+ * 
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider.api;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.medallia.spider.api.DynamicInputImpl.InputKey;
+import com.medallia.spider.api.DynamicInputImpl.ParsedInputs;
+import com.medallia.spider.api.StRenderable.Input;
+import com.medallia.spider.api.StRenderer.InputArgParser;
+import com.medallia.tiny.Empty;
+import com.medallia.tiny.Implement;
+
+public class DynamicInputImplTest extends TestCase {
+
+	private interface Inputs {
+		@Input.List(separator = ".") String[] dotted();
+		@Input.List(separator = "||") String[] piped();
+		@Input.List(separator = ",") int[] ints();
+		@Input.List(separator = ",") long[] longs();
+		Long id();
+		Integer count();
+	}
+
+	private final Map<Class<?>, InputArgParser<?>> parsers = Empty.hashMap();
+
+	private Object get(String name, String value) throws Exception {
+		Map<String, String[]> params = Empty.hashMap();
+		params.put(name, new String[] { value });
+		Method m = Inputs.class.getMethod(name);
+		return new DynamicInputImpl(params, parsers).getInput(name, m.getReturnType(), m);
+	}
+
+	/** the separator is a literal string, not a regular expression */
+	public void testLiteralSeparator() throws Exception {
+		assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList((String[]) get("dotted", "a.b.c")));
+		assertEquals(Arrays.asList("a|b", "c"), Arrays.asList((String[]) get("piped", "a|b||c")));
+		assertEquals(Arrays.asList("abc"), Arrays.asList((String[]) get("dotted", "abc")));
+	}
+
+	/** empty values are kept, including trailing ones */
+	public void testEmptyValues() throws Exception {
+		assertEquals(Arrays.asList("a", "", "b", ""), Arrays.asList((String[]) get("dotted", "a..b.")));
+		assertEquals(Arrays.asList("", ""), Arrays.asList((String[]) get("dotted", ".")));
+	}
+
+	public void testPrimitiveArrays() throws Exception {
+		assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, (int[]) get("ints", "1,2,3")));
+		assertTrue(Arrays.equals(new long[] { 1, 2, 3000000000L }, (long[]) get("longs", "1,2,3000000000")));
+	}
+
+	/** a parser registered for Long is used instead of the built-in one */
+	public void testRegisteredLongParser() throws Exception {
+		assertEquals(Long.valueOf(7), get("id", "7"));
+		InputArgParser<Long> p = new InputArgParser<Long>() {
+			@Implement public Long parse(String str) {
+				return Long.valueOf(str) * 10;
+			}
+		};
+		parsers.put(Long.class, p);
+		parsers.put(Long.TYPE, p);
+		assertEquals(Long.valueOf(70), get("id", "7"));
+		assertTrue(Arrays.equals(new long[] { 10, 20 }, (long[]) get("longs", "1,2")));
+	}
+
+	/** the built-in parser for Integer is used even if another one is registered */
+	public void testBuiltInIntegerParser() throws Exception {
+		parsers.put(Integer.class, new InputArgParser<Integer>() {
+			@Implement public Integer parse(String str) {
+				return -1;
+			}
+		});
+		assertEquals(Integer.valueOf(7), get("count", "7"));
+	}
+
+	/** same names and types as {@link Inputs}, in another interface */
+	private interface OtherInputs {
+		@Input.List(separator = ".") String[] dotted();
+		@Input.List(separator = ",") String[] piped();
+		Integer count();
+	}
+
+	/** equal keys are the same object, and a value parsed for one interface is reused for another */
+	public void testInputKeys() throws Exception {
+		InputKey count = InputKey.forMethod(Inputs.class.getMethod("count"));
+		assertSame(count, InputKey.forMethod(OtherInputs.class.getMethod("count")));
+		assertSame(InputKey.forMethod(Inputs.class.getMethod("dotted")), InputKey.forMethod(OtherInputs.class.getMethod("dotted")));
+		// the separator differs, so the value must be parsed again
+		assertNotSame(InputKey.forMethod(Inputs.class.getMethod("piped")), InputKey.forMethod(OtherInputs.class.getMethod("piped")));
+
+		Map<String, String[]> params = Empty.hashMap();
+		params.put("count", new String[] { "7" });
+		params.put("dotted", new String[] { "a.b" });
+		ParsedInputs parsed = new ParsedInputs();
+		DynamicInputImpl input = new DynamicInputImpl(params, parsers, parsed);
+		assertEquals(Integer.valueOf(7), input.getInput(count));
+		params.put("count", new String[] { "8" });
+		assertEquals(Integer.valueOf(7), new DynamicInputImpl(params, parsers, parsed).getInput(InputKey.forMethod(OtherInputs.class.getMethod("count"))));
+		assertEquals(Integer.valueOf(7), input.getInput("count", Integer.class));
+
+		// each caller gets its own copy of an array
+		String[] dotted = (String[]) input.getInput(InputKey.forMethod(Inputs.class.getMethod("dotted")));
+		dotted[0] = "x";
+		assertEquals("a", ((String[]) input.getInput(InputKey.forMethod(OtherInputs.class.getMethod("dotted"))))[0]);
+	}
+
+	/** each call to a method of an Input proxy returning an array gets its own copy */
+	public void testInputProxyCopiesArrays() throws Exception {
+		Map<String, String[]> params = Empty.hashMap();
+		params.put("dotted", new String[] { "a.b" });
+		params.put("count", new String[] { "7" });
+		Inputs inputs = (Inputs) new InputProxy(Inputs.class).newInstance(new DynamicInputImpl(params, parsers));
+		inputs.dotted()[0] = "x";
+		assertEquals(Arrays.asList("a", "b"), Arrays.asList(inputs.dotted()));
+		assertEquals(Integer.valueOf(7), inputs.count());
+		assertNull(inputs.id());
+		assertTrue(inputs.equals(inputs));
+	}
+
+}
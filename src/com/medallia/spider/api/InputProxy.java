@@ -0,0 +1,145 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider.api;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.medallia.spider.api.DynamicInputImpl.InputKey;
+import com.medallia.spider.api.StRenderable.Input;
+import com.medallia.tiny.Empty;
+import com.medallia.tiny.Implement;
+import com.medallia.tiny.Rethrow;
+
+/**
+ * Factory for objects implementing an interface annotated with {@link Input}. The
+ * methods of the interface and the proxy class are looked up once; each instance
+ * holds an array with one slot per method, which is filled with the parsed value
+ * the first time the method is called. The slot of a call is found by the identity
+ * of the Method object, so a call does not hash the method.
+ */
+class InputProxy {
+
+	/** marks a slot that has not been parsed yet; null is a valid parsed value */
+	private static final Object UNPARSED = new Object();
+
+	private final Class<?> inputInterface;
+	private final Constructor<?> proxyCons;
+	/** map from each method of the interface to its slot */
+	private final Map<Method, Integer> slots = Empty.hashMap();
+	/**
+	 * map from the Method objects the proxy class passes to its handler to their slots; the
+	 * proxy class passes the same objects each time, so these are compared by identity
+	 */
+	private final Map<Method, Integer> proxySlots = new IdentityHashMap<Method, Integer>();
+	private final Method[] methods;
+	/** the key of the values of each method */
+	private final InputKey[] keys;
+
+	/** @param inputInterface the interface annotated with {@link Input} */
+	InputProxy(Class<?> inputInterface) {
+		this.inputInterface = inputInterface;
+		// Proxy.getProxyClass is deprecated, so the class is taken from an instance which is
+		// only used to find the Method objects the proxy class passes to its handler
+		final Method[] called = new Method[1];
+		Object probe = Proxy.newProxyInstance(inputInterface.getClassLoader(), new Class<?>[] { inputInterface }, new InvocationHandler() {
+			@Implement public Object invoke(Object proxy, Method method, Object[] args) {
+				called[0] = method;
+				throw PROBED;
+			}
+		});
+		try {
+			proxyCons = probe.getClass().getConstructor(InvocationHandler.class);
+			// the proxy class is not public if the interface is not
+			proxyCons.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new AssertionError(e);
+		}
+		methods = inputInterface.getMethods();
+		keys = new InputKey[methods.length];
+		for (int i = 0; i < methods.length; i++) {
+			slots.put(methods[i], i);
+			keys[i] = InputKey.forMethod(methods[i]);
+			called[0] = null;
+			try {
+				methods[i].invoke(probe);
+			} catch (Exception e) {
+				// expected; methods with arguments are only found through the slots map
+			}
+			if (called[0] != null)
+				proxySlots.put(called[0], i);
+		}
+	}
+
+	/** thrown by the handler of the instance used to find the Method objects of the proxy class */
+	private static final RuntimeException PROBED = new RuntimeException("Probed");
+
+	/** @return an instance of the interface that parses the values from the given object */
+	Object newInstance(final DynamicInputImpl dynamicInput) {
+		final Object[] values = new Object[methods.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = UNPARSED;
+
+		InvocationHandler h = new InvocationHandler() {
+			@Implement public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				Integer k = proxySlots.get(method);
+				if (k == null) {
+					k = slots.get(method);
+					if (k == null)
+						return invokeObjectMethod(proxy, method, args);
+				}
+
+				Object v = values[k];
+				if (v == UNPARSED)
+					values[k] = v = dynamicInput.getInput(keys[k]);
+				// the caller may change an array, so each call gets its own copy
+				return DynamicInputImpl.copyIfArray(v);
+			}
+		};
+		try {
+			return proxyCons.newInstance(h);
+		} catch (Exception e) {
+			throw Rethrow.withComment(e, "While creating proxy for " + inputInterface);
+		}
+	}
+
+	/** @return the key of the values of the method of the interface with the given name, or null if there is none */
+	InputKey findKey(String name) {
+		for (int i = 0; i < methods.length; i++) {
+			if (methods[i].getName().equals(name))
+				return keys[i];
+		}
+		return null;
+	}
+
+	/** @return the result of calling one of the methods declared in Object */
+	private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("equals"))
+			return proxy == args[0];
+		if (name.equals("hashCode"))
+			return System.identityHashCode(proxy);
+		if (name.equals("toString"))
+			return inputInterface.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+		throw new AssertionError("Unexpected method " + method);
+	}
+
+}
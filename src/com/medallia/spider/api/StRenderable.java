@@ -57,7 +57,7 @@ import com.medallia.spider.Task;
  *   <p>
  *   
  * When a method is called on Params the request parameter with the same name as the method
- * is parsed into the given type. By default enums, ints and booleans are supported; custom
+ * is parsed into the given type. By default enums, ints, longs, strings and booleans are supported; custom
  * types can be registered via {@link StRenderer#registerArgParser(Class, spider.api.StRenderer.InputArgParser)}.
  * <p>
  * 
@@ -96,7 +96,7 @@ public interface StRenderable {
 		@Retention(RetentionPolicy.RUNTIME)
 		@interface MultiValued {}
 		
-		/** This input takes a single string, and splits it on the separator using string.split() */		
+		/** This input takes a single string, and splits it on the separator; the separator is a literal string, not a regular expression */		
 		@Retention(RetentionPolicy.RUNTIME)
 		@interface List {
 			String separator();
@@ -17,18 +17,13 @@
 package com.medallia.spider.api;
 
 import java.io.IOException;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
-import java.lang.reflect.Proxy;
+import java.net.URL;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.antlr.stringtemplate.StringTemplate;
@@ -40,18 +35,20 @@ import org.apache.commons.lang.StringEscapeUtils;
 
 import com.medallia.spider.MethodInvoker;
 import com.medallia.spider.MethodInvoker.LifecycleHandlerSet;
-import com.medallia.spider.api.StRenderable.Input;
-import com.medallia.spider.api.StRenderable.Output;
+import com.medallia.spider.api.DynamicInputImpl.InputKey;
+import com.medallia.spider.api.DynamicInputImpl.InputParsers;
+import com.medallia.spider.api.DynamicInputImpl.ParsedInputs;
+import com.medallia.spider.api.StRenderable.DynamicInput;
 import com.medallia.spider.api.StRenderable.PostAction;
 import com.medallia.spider.api.StRenderable.StTemplatePostAction;
-import com.medallia.spider.api.StRenderable.V;
+import com.medallia.spider.api.TaskModel.OutputBinding;
 import com.medallia.spider.sttools.StTool;
-import com.medallia.tiny.CollUtils;
 import com.medallia.tiny.Empty;
 import com.medallia.tiny.Implement;
 import com.medallia.tiny.ObjectProvider;
 import com.medallia.tiny.string.HtmlString;
 import com.medallia.tiny.string.JsString;
+import com.medallia.tiny.string.PrecompilingStringTemplateGroup;
 import com.medallia.tiny.string.StringTemplateBuilder.SimpleAttributeRenderer;
 
 /**
@@ -74,7 +71,7 @@ public abstract class StRenderer {
 	
 	/**
 	 * @param stringTemplateFactory object returned from {@link #makeStringTemplateFactory(StringTemplateErrorListener, StToolProvider)}
-	 * @param debugMode true if debug mode is on; the template source is then re-read from disk every time
+	 * @param renderable the object to render; may be null if the renderer is only used to parse input
 	 */
 	public StRenderer(StringTemplateFactory stringTemplateFactory, StRenderable renderable) {
 		this.stringTemplateFactory = stringTemplateFactory;
@@ -83,7 +80,7 @@ public abstract class StRenderer {
 	
 	/** @return the default target */
 	protected PostAction defaultPostAction() {
-		return stRenderPostAction(getTemplateNameFromClass(renderable.getClassForTemplateName()));
+		return stTemplateResult(getTemplateNameFromClass(renderable.getClassForTemplateName()));
 	}
 
 	/** PostAction that holds the result of the rendering of the template source */
@@ -102,6 +99,46 @@ public abstract class StRenderer {
 		};
 	}
 	
+	/**
+	 * PostAction that renders the template when it is written; this is returned instead of
+	 * a {@link StRenderPostAction} if {@link #isStreamingRender()} is true.
+	 */
+	public interface StStreamPostAction extends PostAction {
+		/**
+		 * Render the template to the given writer.
+		 * 
+		 * @return the number of characters written
+		 * @throws MissingAttributesException if the template referenced any attributes not set
+		 *         by the action method; note that this is thrown after the template is written
+		 */
+		int write(StringTemplateWriter out) throws IOException;
+	}
+	
+	/** Load the template with the given name and wrap it in a {@link StStreamPostAction} that renders it */
+	protected StStreamPostAction stStreamPostAction(String templateName) {
+		final StringTemplate st = getStInstance(templateName);
+		return new StStreamPostAction() {
+			@Implement public int write(StringTemplateWriter out) throws IOException {
+				return StRenderer.this.write(st, out);
+			}
+		};
+	}
+	
+	/**
+	 * @return true if the template should be written directly to the output instead of being
+	 * rendered into a String, i.e. if {@link #actionAndRender(ObjectProvider, LifecycleHandlerSet, Map)}
+	 * should return a {@link StStreamPostAction} instead of a {@link StRenderPostAction}.
+	 * By default this is false.
+	 */
+	protected boolean isStreamingRender() {
+		return false;
+	}
+	
+	/** @return the PostAction for rendering the template with the given name; see {@link #isStreamingRender()} */
+	private PostAction stTemplateResult(String templateName) {
+		return isStreamingRender() ? stStreamPostAction(templateName) : stRenderPostAction(templateName);
+	}
+	
 	/**
 	 * Call the action method of the {@link StRenderable}, render the template if applicable and return the result.
 	 * 
@@ -111,60 +148,26 @@ public abstract class StRenderer {
 	 * @throws MissingAttributesException if the template referenced any attributes not set by the action method
 	 */
 	public PostAction actionAndRender(ObjectProvider injector, LifecycleHandlerSet hs, Map<String, String[]> inputParams) throws MissingAttributesException {
-		PostAction pa = invokeAction(injector, hs, inputParams);
+		return actionAndRender(injector, hs, inputParams, new ParsedInputs());
+	}
+	
+	/**
+	 * Same as {@link #actionAndRender(ObjectProvider, LifecycleHandlerSet, Map)}, but reuses
+	 * the values in the given object that have already been parsed from the request parameters.
+	 */
+	public PostAction actionAndRender(ObjectProvider injector, LifecycleHandlerSet hs, Map<String, String[]> inputParams, ParsedInputs parsedInputs) throws MissingAttributesException {
+		PostAction pa = invokeAction(injector, hs, inputParams, parsedInputs);
 		return pa == null ? defaultPostAction() : render(pa);
 	}
 	
 	private PostAction render(PostAction pa) {
 		if (pa instanceof StTemplatePostAction) {
-			return stRenderPostAction(((StTemplatePostAction)pa).templateName());
+			return stTemplateResult(((StTemplatePostAction)pa).templateName());
 		} else {
 			return pa;
 		}
 	}
 
-	/** map from the class to the action method of that class; stored for performance reasons */
-	private static final ConcurrentMap<Class<?>, Method> ACTION_METHOD_MAP = Empty.concurrentMap();
-	
-	/** @return the action method of the given class; throws AssertionError if no such method exists */
-	private static Method findActionMethod(Class<?> clazz) {
-		Method am = ACTION_METHOD_MAP.get(clazz);
-		if (am != null)
-			return am;
-		
-		for (Method m : CollUtils.concat(Arrays.asList(clazz.getMethods()), Arrays.asList(clazz.getDeclaredMethods()))) {
-			if (m.getName().equals("action")) {
-				int modifiers = m.getModifiers();
-				if (Modifier.isPrivate(modifiers) || Modifier.isStatic(modifiers)) continue;
-				m.setAccessible(true);
-				ACTION_METHOD_MAP.put(clazz, m);
-				return m;
-			}
-		}
-		throw new AssertionError("No action method found in " + clazz);
-	}
-	
-	private static final ConcurrentMap<Class<?>, Class<?>> INPUT_ANNOTATION_MAP = Empty.concurrentMap();
-	private static final ConcurrentMap<Class<?>, Class<?>> OUTPUT_ANNOTATION_MAP = Empty.concurrentMap();
-	
-	/** @return the interface declared within the given class which is also annotated with the given annotation */ 
-	private static <X extends Annotation> Class<X> findInterfaceWithAnnotation(Map<Class<?>, Class<?>> methodMap, Class<?> clazz, Class<? extends Annotation> annotation) {
-		Class<?> annotatedInterface = methodMap.get(clazz);
-		if (annotatedInterface == null) {
-			for (Class<?> c : CollUtils.concat(Arrays.asList(clazz.getClasses()), Arrays.asList(clazz.getDeclaredClasses()))) {
-				Annotation i = c.getAnnotation(annotation);
-				if (i != null) {
-					annotatedInterface = c;
-					methodMap.put(clazz, annotatedInterface);
-					break;
-				}
-			}
-		}
-		@SuppressWarnings("unchecked")
-		Class<X> x = (Class<X>) annotatedInterface;
-		return x;
-	}
-	
 	/**
 	 * Call the action method of the {@link StRenderable} and return the post action that needs to be rendered
 	 * 
@@ -174,16 +177,47 @@ public abstract class StRenderer {
 	 * @return result of the action and render
 	 */
 	public PostAction invokeAction(ObjectProvider injector, LifecycleHandlerSet hs, Map<String, String[]> inputParams) {
-		DynamicInputImpl dynamicInput = new DynamicInputImpl(inputParams, inputArgParsers);
+		return invokeAction(injector, hs, inputParams, new ParsedInputs());
+	}
+	
+	/**
+	 * Same as {@link #invokeAction(ObjectProvider, LifecycleHandlerSet, Map)}, but reuses
+	 * the values in the given object that have already been parsed from the request parameters.
+	 */
+	public PostAction invokeAction(ObjectProvider injector, LifecycleHandlerSet hs, Map<String, String[]> inputParams, ParsedInputs parsedInputs) {
+		DynamicInputImpl dynamicInput = makeDynamicInput(inputParams, parsedInputs);
 		injector = injector.copyWith(dynamicInput).errorOnUnknownType();
 		
-		Method am = findActionMethod(renderable.getClass());
-		Class<Input> inputInterface = findInterfaceWithAnnotation(INPUT_ANNOTATION_MAP, renderable.getClass(), Input.class);
-		if (inputInterface != null) {
-			injector.register(createInput(inputInterface, dynamicInput));
+		TaskModel model = TaskModel.forClass(renderable.getClass());
+		InputProxy inputProxy = model.getInputProxy();
+		if (inputProxy != null) {
+			injector.register(inputProxy.newInstance(dynamicInput));
 		}
 		
-		return (PostAction) new MethodInvoker(injector, hs).invoke(am, renderable);
+		return (PostAction) new MethodInvoker(injector, hs).invoke(model.getActionMethod(), renderable);
+	}
+	
+	/** @return a {@link DynamicInput} for the given request parameters that uses the registered {@link InputArgParser} objects */
+	public DynamicInputImpl makeDynamicInput(Map<String, String[]> inputParams, ParsedInputs parsedInputs) {
+		return new DynamicInputImpl(inputParams, getInputParsers(), parsedInputs);
+	}
+	
+	/** @return the registered {@link InputArgParser} objects merged with the built-in parsers; made on first use */
+	protected InputParsers getInputParsers() {
+		InputParsers p = inputParsers;
+		if (p == null)
+			inputParsers = p = new InputParsers(inputArgParsers);
+		return p;
+	}
+	
+	/** @return the key of the values of the method with the given name in the interface annotated with {@link Input} declared within the given class, or null if there is none */
+	public static InputKey findInputKey(Class<?> clazz, String name) {
+		return TaskModel.forClass(clazz).findInputKey(name);
+	}
+	
+	/** @return the {@link InputArgParser} objects registered with {@link #registerArgParser(Class, InputArgParser)} */
+	public Map<Class<?>, InputArgParser<?>> getArgParsers() {
+		return Collections.unmodifiableMap(inputArgParsers);
 	}
 	
 	/** object that can parse a request parameter argument into a proper type */
@@ -193,20 +227,13 @@ public abstract class StRenderer {
 	}
 	
 	private final Map<Class<?>, InputArgParser<?>> inputArgParsers = Empty.hashMap();
-
-	private Object createInput(Class<?> x, final DynamicInputImpl dynamicInput) {
-		return Proxy.newProxyInstance(x.getClassLoader(), new Class<?>[] { x }, 
-			new InvocationHandler() {
-				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-					return dynamicInput.getInput(method.getName(), method.getReturnType(), method);
-				}
-			}
-		);
-	}
+	/** see {@link #getInputParsers()}; null until first used after a parser is registered */
+	private InputParsers inputParsers;
 	
 	/** register the given {@link InputArgParser} */
 	public <X> void registerArgParser(Class<X> type, InputArgParser<X> parser) {
 		inputArgParsers.put(type, parser);
+		inputParsers = null;
 	}
 
 	/** Exception thrown when a referenced StringTemplate attribute is not set */
@@ -237,15 +264,7 @@ public abstract class StRenderer {
 	
 	/** @return the template name based on the name of the given class */
 	protected String getTemplateNameFromClass(Class<?> c) {
-		String tn = c.getName();
-		
-		Pattern p = getClassNamePrefixPattern();
-		Matcher m = p.matcher(tn);
-		if (!m.matches()) throw new AssertionError("Default template name expects class name [" + tn + "] to match regex " + p.pattern());
-		
-		tn = m.group(1);
-		tn = tn.substring(0, 1).toLowerCase() + tn.substring(1);
-		return tn;
+		return TaskModel.forClass(c).getTemplateName(getClassNamePrefixPattern());
 	}
 	
 	/**
@@ -263,6 +282,9 @@ public abstract class StRenderer {
 	private interface StTemplatePath {
 		/** See {@link StRenderer#findPathForTemplate(Class, String)} */
 		String findPathForTemplate(String name);
+		
+		/** @return the key the path to the named template is cached on */
+		List<Object> getCacheKey(String name);
 	}
 	
 	/**
@@ -276,6 +298,9 @@ public abstract class StRenderer {
 			@Implement public String findPathForTemplate(String name) {
 				return StRenderer.this.findPathForTemplate(renderable.getClassForTemplateName(), name);
 			}
+			@Implement public List<Object> getCacheKey(String name) {
+				return Arrays.<Object>asList(renderable.getClassForTemplateName(), getPageRelativePath(), name);
+			}
 		});
 	}
 	private void releaseStTemplatePathTl() {
@@ -284,27 +309,7 @@ public abstract class StRenderer {
 	
 	/** @return the result of rendering the given StringTemplate in the context set up by this class */
 	public String render(StringTemplate st) throws MissingAttributesException {
-		StMissingAttrs ctx = new StMissingAttrs();
-		
-		Class<Output> outputInterface = findInterfaceWithAnnotation(OUTPUT_ANNOTATION_MAP, renderable.getClass(), Output.class);
-		if (outputInterface != null) {
-			for (Field f : outputInterface.getDeclaredFields()) {
-				f.setAccessible(true);
-				V<?> tag;
-				try {
-					tag = (V<?>) f.get(null);
-				} catch (Exception e) {
-					throw new RuntimeException("For " + f, e);
-				}
-				String fname = f.getName().toLowerCase();
-				Object obj = renderable.getAttr(tag);
-				if (obj != null) {
-					st.setAttribute(fname, obj);
-				} else if (renderable.hasAttr(tag)) {
-					ctx.nullAttrs.add(fname);
-				}
-			}
-		}
+		StMissingAttrs ctx = setOutputAttributes(st);
 
 		ST_MISSING_ATTRS_TL.set(ctx);
 		setStTemplatePathTl();
@@ -319,6 +324,43 @@ public abstract class StRenderer {
 		}
 	}
 
+	/**
+	 * Render the given StringTemplate in the context set up by this class to the given writer.
+	 * 
+	 * @return the number of characters written
+	 * @throws MissingAttributesException if the template referenced any attributes not set; this
+	 *         is detected, and thrown, after the template is written
+	 */
+	public int write(StringTemplate st, StringTemplateWriter out) throws IOException, MissingAttributesException {
+		StMissingAttrs ctx = setOutputAttributes(st);
+
+		ST_MISSING_ATTRS_TL.set(ctx);
+		setStTemplatePathTl();
+		try {
+			int n = writeFinal(st, out);
+			if (!ctx.missingAttrs.isEmpty()) throw new MissingAttributesException(ctx.missingAttrs, st);
+			
+			return n;
+		} finally {
+			releaseStTemplatePathTl();
+			ST_MISSING_ATTRS_TL.remove();
+		}
+	}
+
+	/** set the Output variables of the renderable as attributes on the given StringTemplate */
+	private StMissingAttrs setOutputAttributes(StringTemplate st) {
+		StMissingAttrs ctx = new StMissingAttrs();
+		for (OutputBinding ob : TaskModel.forClass(renderable.getClass()).getOutputBindings()) {
+			Object obj = renderable.getAttr(ob.tag);
+			if (obj != null) {
+				st.setAttribute(ob.attrName, obj);
+			} else if (renderable.hasAttr(ob.tag)) {
+				ctx.nullAttrs.add(ob.attrName);
+			}
+		}
+		return ctx;
+	}
+
 	/**
 	 * @return a StringTemplate with the template loaded from the given filename.
 	 *         This template must be passed to {@link #render(StringTemplate)}
@@ -338,12 +380,20 @@ public abstract class StRenderer {
 		return st.toString();
 	}
 	
+	/** actual perform the rendering of the given StringTemplate by calling {@link StringTemplate#write(StringTemplateWriter)} */
+	protected int writeFinal(StringTemplate st, StringTemplateWriter out) throws IOException {
+		return st.write(out);
+	}
+	
 	/** @return the relative path to the .st files; by default this is a package called "pages" */
 	protected String getPageRelativePath() {
 		return "pages/";
 	}
 
-	/** @return the path to the .st file of the given name, relative to the package of the given class */
+	/**
+	 * @return the path to the .st file of the given name, relative to the package of the given class;
+	 * the result is cached on the class, {@link #getPageRelativePath()} and the name
+	 */
 	protected String findPathForTemplate(Class<?> c, String name) {
 		name = getPageRelativePath() + name;
 		String path = name + ".st";
@@ -375,6 +425,19 @@ public abstract class StRenderer {
 		void setRefreshInterval(int seconds);
 	}
 
+	/**
+	 * {@link StringTemplateFactory} which can load templates before they are used; the object
+	 * returned from {@link StRenderer#makeStringTemplateFactory(StringTemplateErrorListener, StToolProvider)}
+	 * implements this interface.
+	 */
+	public interface PrecompilingStringTemplateFactory extends StringTemplateFactory {
+		/**
+		 * Load the template with the given name from the given file, unless it is already loaded,
+		 * so that it need not be parsed when first used; see {@link PrecompilingStringTemplateGroup}.
+		 */
+		void precompile(String templateName, URL url) throws IOException;
+	}
+
 	/** Object that provides instances of {@link StTool} */
 	public interface StToolProvider {
 		/** @return the StTool for the given name */
@@ -388,9 +451,21 @@ public abstract class StRenderer {
 	 *         re-used for best performance.
 	 */
 	public static StringTemplateFactory makeStringTemplateFactory(StringTemplateErrorListener errorListener, final StToolProvider stToolProvider) {
-		final StringTemplateGroup stGroup = new StringTemplateGroup("StRenderer") {
+		final PrecompilingStringTemplateGroup stGroup = new PrecompilingStringTemplateGroup("StRenderer") {
+			/** cache of the paths to the templates, so the class path need not be searched each time a template is read */
+			private final ConcurrentMap<List<Object>, String> templatePaths = Empty.concurrentMap();
 			@Override public String getFileNameFromTemplateName(String name) {
-				return super.getFileNameFromTemplateName(ST_TEMPLATE_PATH_TL.get().findPathForTemplate(name));
+				StTemplatePath p = ST_TEMPLATE_PATH_TL.get();
+				List<Object> key = p.getCacheKey(name);
+				String path = templatePaths.get(key);
+				if (path == null) {
+					path = p.findPathForTemplate(name);
+					templatePaths.put(key, path);
+				}
+				return super.getFileNameFromTemplateName(path);
+			}
+			@Override protected void clearTemplateLocations() {
+				templatePaths.clear();
 			}
 			@Override public StringTemplate getEmbeddedInstanceOf(StringTemplate enclosingInstance, String name) throws IllegalArgumentException {
 				final StTool t = stToolProvider.getStTool(name);
@@ -422,7 +497,7 @@ public abstract class StRenderer {
 		stGroup.setErrorListener(errorListener);
 		registerWebRenderers(stGroup);
 		
-		return new StringTemplateFactory() {
+		return new PrecompilingStringTemplateFactory() {
 			@Implement public StringTemplate getStInstance(String templateName) {
 				return stGroup.getInstanceOf(templateName);
 			}
@@ -435,6 +510,9 @@ public abstract class StRenderer {
 			@Implement public void setRefreshInterval(int seconds) {
 				stGroup.setRefreshInterval(seconds);
 			}
+			@Implement public void precompile(String templateName, URL url) throws IOException {
+				stGroup.precompile(templateName, url);
+			}
 		};
 	}
 	
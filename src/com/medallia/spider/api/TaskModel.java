@@ -0,0 +1,178 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.spider.api;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.medallia.spider.MethodInvoker;
+import com.medallia.spider.MethodInvoker.Invokable;
+import com.medallia.spider.api.DynamicInputImpl.InputKey;
+import com.medallia.spider.api.StRenderable.Input;
+import com.medallia.spider.api.StRenderable.Output;
+import com.medallia.spider.api.StRenderable.V;
+import com.medallia.tiny.ClassCache;
+import com.medallia.tiny.CollUtils;
+import com.medallia.tiny.Empty;
+
+/**
+ * The reflective information {@link StRenderer} needs about a class implementing
+ * {@link StRenderable}: the action method, the {@link Input} and {@link Output}
+ * interfaces and the template name. It is computed once per class.
+ * <p>
+ *
+ * The models are kept in a {@link ClassCache}, which can be read without locking. A model
+ * refers to the methods and fields of its class, so it is held by a soft reference; the
+ * class is only released once that is cleared.
+ */
+class TaskModel {
+
+	/** the model of each class */
+	private static final ClassCache<TaskModel> MODELS = new ClassCache<TaskModel>() {
+		@Override protected TaskModel compute(Class<?> c) {
+			return new TaskModel(c);
+		}
+	};
+
+	/** @return the model of the given class */
+	static TaskModel forClass(Class<?> c) {
+		return MODELS.get(c);
+	}
+
+	/** Output variable of a task; the value of the tag is set as the attribute with the given name */
+	static class OutputBinding {
+		final V<?> tag;
+		final String attrName;
+		private OutputBinding(V<?> tag, String attrName) {
+			this.tag = tag;
+			this.attrName = attrName;
+		}
+	}
+
+	/** Template name derived from the class name with the given pattern */
+	private static class TemplateName {
+		private final Pattern pattern;
+		private final String name;
+		private TemplateName(Pattern pattern, String name) {
+			this.pattern = pattern;
+			this.name = name;
+		}
+	}
+
+	private final Class<?> clazz;
+	private final Invokable<Object> actionMethod;
+	private final InputProxy inputProxy;
+	private final OutputBinding[] outputBindings;
+	private volatile TemplateName templateName;
+
+	private TaskModel(Class<?> clazz) {
+		this.clazz = clazz;
+		this.actionMethod = findActionMethod(clazz);
+		Class<?> inputInterface = findInterfaceWithAnnotation(clazz, Input.class);
+		this.inputProxy = inputInterface == null ? null : new InputProxy(inputInterface);
+		this.outputBindings = makeOutputBindings(findInterfaceWithAnnotation(clazz, Output.class));
+	}
+
+	/** @return the prepared action method; throws AssertionError if no such method exists */
+	Invokable<Object> getActionMethod() {
+		if (actionMethod == null) throw new AssertionError("No action method found in " + clazz);
+		return actionMethod;
+	}
+
+	/** @return the factory for the {@link Input} interface, or null if the class has no such interface */
+	InputProxy getInputProxy() {
+		return inputProxy;
+	}
+
+	/** @return the key of the values of the method of the {@link Input} interface with the given name, or null if there is none */
+	InputKey findInputKey(String name) {
+		return inputProxy == null ? null : inputProxy.findKey(name);
+	}
+
+	/** @return the variables of the {@link Output} interface; empty if the class has no such interface */
+	OutputBinding[] getOutputBindings() {
+		return outputBindings;
+	}
+
+	/** @return the template name based on the name of the class; see {@link StRenderer#getClassNamePrefixPattern()} */
+	String getTemplateName(Pattern p) {
+		TemplateName tn = templateName;
+		if (tn == null || tn.pattern != p) {
+			tn = new TemplateName(p, makeTemplateName(clazz, p));
+			templateName = tn;
+		}
+		return tn.name;
+	}
+
+	private static String makeTemplateName(Class<?> c, Pattern p) {
+		String tn = c.getName();
+
+		Matcher m = p.matcher(tn);
+		if (!m.matches()) throw new AssertionError("Default template name expects class name [" + tn + "] to match regex " + p.pattern());
+
+		tn = m.group(1);
+		tn = tn.substring(0, 1).toLowerCase() + tn.substring(1);
+		return tn;
+	}
+
+	/** @return the prepared action method of the given class, or null if no such method exists */
+	private static Invokable<Object> findActionMethod(Class<?> clazz) {
+		for (Method m : CollUtils.concat(Arrays.asList(clazz.getMethods()), Arrays.asList(clazz.getDeclaredMethods()))) {
+			if (m.getName().equals("action")) {
+				int modifiers = m.getModifiers();
+				if (Modifier.isPrivate(modifiers) || Modifier.isStatic(modifiers)) continue;
+				return MethodInvoker.prepare(m);
+			}
+		}
+		return null;
+	}
+
+	/** @return the interface declared within the given class which is also annotated with the given annotation */
+	private static Class<?> findInterfaceWithAnnotation(Class<?> clazz, Class<? extends Annotation> annotation) {
+		for (Class<?> c : CollUtils.concat(Arrays.asList(clazz.getClasses()), Arrays.asList(clazz.getDeclaredClasses()))) {
+			if (c.getAnnotation(annotation) != null)
+				return c;
+		}
+		return null;
+	}
+
+	/** @return the variables declared in the given {@link Output} interface */
+	private static OutputBinding[] makeOutputBindings(Class<?> outputInterface) {
+		if (outputInterface == null)
+			return new OutputBinding[0];
+
+		List<OutputBinding> l = Empty.list();
+		for (Field f : outputInterface.getDeclaredFields()) {
+			f.setAccessible(true);
+			V<?> tag;
+			try {
+				tag = (V<?>) f.get(null);
+			} catch (Exception e) {
+				throw new RuntimeException("For " + f, e);
+			}
+			l.add(new OutputBinding(tag, f.getName().toLowerCase()));
+		}
+		return l.toArray(new OutputBinding[l.size()]);
+	}
+
+}
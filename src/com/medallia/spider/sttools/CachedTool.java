@@ -18,26 +18,43 @@ package com.medallia.spider.sttools;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
 
 import org.antlr.stringtemplate.StringTemplate;
 
+import com.medallia.spider.StaticResources.ModifiableResource;
+import com.medallia.spider.StaticResources.SizedResource;
 import com.medallia.spider.StaticResources.StaticResource;
 import com.medallia.spider.StaticResources.StaticResourceLookup;
+import com.medallia.tiny.Empty;
 import com.medallia.tiny.Encoding;
 import com.medallia.tiny.Implement;
 
 
 /**
- * Tool that is supposed to add a hash to a link to a static resource
+ * Tool that adds a hash of the content to a link to a static resource
  * to handle browser cache invalidation.
  * <p>
  * 
- * Note: not yet implemented, simply returns the link unmodified.
- *
+ * The hash of a preloaded resource is computed when it is loaded. Otherwise
+ * the hash is remembered and only computed again if the modification time
+ * of the resource changes.
  */
 public class CachedTool implements StTool {
 	
+	/** Hash of a resource and the modification time it was computed for */
+	private static class Fingerprint {
+		private final long lastModified;
+		private final String md5;
+		private Fingerprint(long lastModified, String md5) {
+			this.lastModified = lastModified;
+			this.md5 = md5;
+		}
+	}
+	
 	private final StaticResourceLookup srl;
+	/** map from resource name to the last hash computed for it */
+	private final ConcurrentMap<String, Fingerprint> fingerprints = Empty.concurrentMap();
 	
 	public CachedTool(StaticResourceLookup srl) {
 		this.srl = srl;
@@ -48,21 +65,35 @@ public class CachedTool implements StTool {
 		StaticResource sr = srl.findStaticResource(resourceName);
 		
 		if (sr != null) {
-			// copy into buffer and calculate md5
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			try {
-				sr.copyTo(buffer);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-			
 			// create and return link
-			String md5 = Encoding.md5(buffer.toByteArray());
-			
-			return resourceName + "?" + md5;
+			return resourceName + "?" + getFingerprint(resourceName, sr);
 		}
 		
 		throw new RuntimeException("Resource not found: " + resourceName);
 	}
 
+	private String getFingerprint(String resourceName, StaticResource sr) {
+		if (sr instanceof SizedResource)
+			return ((SizedResource) sr).getFingerprint();
+		
+		long lastModified = sr instanceof ModifiableResource ? ((ModifiableResource) sr).getLastModified() : 0;
+		Fingerprint f = fingerprints.get(resourceName);
+		if (f == null || lastModified == 0 || f.lastModified != lastModified) {
+			f = new Fingerprint(lastModified, md5(sr));
+			fingerprints.put(resourceName, f);
+		}
+		return f.md5;
+	}
+
+	private static String md5(StaticResource sr) {
+		// copy into buffer and calculate md5
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try {
+			sr.copyTo(buffer);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return Encoding.md5(buffer.toByteArray());
+	}
+
 }
@@ -0,0 +1,81 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.tiny;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of values computed from a class, e.g. reflective information about it. Lookups
+ * do not lock, so the cache can be used on every request.
+ * <p>
+ *
+ * The classes are held by weak references. A value computed from a class usually refers
+ * to it, e.g. through its methods, so the values are held by soft references; otherwise
+ * the class could never be unloaded. A class whose class loader is no longer used is
+ * thus released once the garbage collector clears the soft references, which it does
+ * before running out of memory.
+ */
+public abstract class ClassCache<V> {
+
+	private final ConcurrentMap<Key, SoftReference<V>> values = Empty.concurrentMap();
+	private final ReferenceQueue<Class<?>> queue = new ReferenceQueue<Class<?>>();
+
+	/** @return the value for the given class; called if there is no value cached for it */
+	protected abstract V compute(Class<?> c);
+
+	/** @return the value for the given class, computed if it is not cached */
+	public V get(Class<?> c) {
+		SoftReference<V> ref = values.get(new Key(c, null));
+		V v = ref == null ? null : ref.get();
+		if (v == null) {
+			expungeStaleEntries();
+			v = compute(c);
+			values.put(new Key(c, queue), new SoftReference<V>(v));
+		}
+		return v;
+	}
+
+	/** remove the entries of the classes that have been garbage collected */
+	private void expungeStaleEntries() {
+		Reference<? extends Class<?>> r;
+		while ((r = queue.poll()) != null)
+			values.remove(r);
+	}
+
+	/** Weak reference to a class, which is equal to other references to the same class */
+	private static class Key extends WeakReference<Class<?>> {
+		private final int hashCode;
+		private Key(Class<?> c, ReferenceQueue<Class<?>> queue) {
+			super(c, queue);
+			this.hashCode = System.identityHashCode(c);
+		}
+		@Override public int hashCode() {
+			return hashCode;
+		}
+		@Override public boolean equals(Object o) {
+			if (o == this) return true;
+			if (!(o instanceof Key)) return false;
+			Class<?> c = get();
+			return c != null && c == ((Key) o).get();
+		}
+	}
+
+}
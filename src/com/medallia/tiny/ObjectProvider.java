@@ -17,13 +17,20 @@
 package	 com.medallia.tiny;
 
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -42,6 +49,17 @@ import org.apache.commons.logging.LogFactory;
  * Usually this class will be used for the {@link #makeArgsFor(Method)} method, which will find valid parameters for all
  * arguments to the function, provided such objects are registered. The parameters may have annotations, in which case the lookup
  * will be based on the annotation. If not, we will use lookup by class.
+ * <p>
+ * 
+ * The lookups done by {@link #makeArgsFor(Method)} are planned once for each method and set of
+ * registered classes and annotations; the plan is cached and reused by all providers that have
+ * the same classes and annotations registered in the same order.
+ * <p>
+ * 
+ * A copy, e.g. from {@link #copyWith(Object)} or {@link #makeChild()}, does not copy the registered
+ * objects; it keeps a reference to an immutable snapshot of them and only stores the objects
+ * registered after the copy was made. Making a copy is thus cheap, and lookups walk the (short)
+ * chain of snapshots.
  */
 public class ObjectProvider {
 	private static final Object NO_ARG = new Object(); // So we can still set the last argument to null
@@ -49,21 +67,36 @@ public class ObjectProvider {
 	private static final Object[] NO_ARUMENTS = new Object[0];
 	
 	private Object lastArg = NO_ARG;
+	/**
+	 * the objects registered directly in this provider; for a copy this does not include the
+	 * objects of the provider it was copied from, which are only available through {@link #get(Class)}
+	 */
 	protected final Map<Class<?>, Object> map;
 	private final Map<Class<?>, Object> annotationMap;
+	/** the objects of the provider this was copied from, or null */
+	private final Snapshot parent;
 	private boolean errorOnUnknownType;
+	/** true if no more objects can be registered; see {@link #freeze()} */
+	private boolean frozen;
+	/** the registered objects in slot order; computed on demand and cleared on each registration */
+	private Snapshot snapshot;
 	/**
 	 * Creates a new ObjectProvider with no registered objects
 	 */
 	public ObjectProvider() { 
 		map = Empty.linkedHashMap();
 		annotationMap = Empty.linkedHashMap();
+		parent = null;
 	}
 	
-	/** make a new object provider by copying the given provider */
+	/**
+	 * make a new object provider by copying the given provider; the copy refers to a snapshot of
+	 * the objects of the given provider instead of copying them, so {@link #map} starts out empty
+	 */
 	protected ObjectProvider(ObjectProvider from) { 
-		map = Empty.linkedHashMap(from.map);
-		annotationMap = Empty.linkedHashMap(from.annotationMap);
+		map = Empty.linkedHashMap();
+		annotationMap = Empty.linkedHashMap();
+		parent = from.getSnapshot();
 		lastArg = from.lastArg;
 	}
 	
@@ -71,12 +104,40 @@ public class ObjectProvider {
 	protected ObjectProvider copyObjectProvider() {
 		return new ObjectProvider(this);
 	}
+	
+	/**
+	 * @return a copy of this object; objects registered in the copy are not visible in this
+	 * object and vice versa. This is a constant time operation once the objects registered in
+	 * this provider have been snapshotted, which happens on first use.
+	 */
+	public ObjectProvider makeChild() {
+		return copyObjectProvider();
+	}
 
 	/** if called an exception will be thrown if an unknown object is requested instead of passing in null */
 	public ObjectProvider errorOnUnknownType() {
+		checkNotFrozen();
 		errorOnUnknownType = true;
 		return this;
 	}
+	
+	/**
+	 * Make this provider read only; registering an object after this method is called
+	 * throws an IllegalStateException. A frozen provider can be shared between threads,
+	 * typically as the parent of copies made with {@link #makeChild()}.
+	 * 
+	 * @return this ObjectProvider
+	 */
+	public ObjectProvider freeze() {
+		getSnapshot();
+		frozen = true;
+		return this;
+	}
+	
+	private void checkNotFrozen() {
+		if (frozen)
+			throw new IllegalStateException("Cannot register objects in a frozen " + this);
+	}
 
 	/**
 	 * Ensures that o is of type X and registers it.
@@ -102,7 +163,9 @@ public class ObjectProvider {
 	 * Registers o for o.getClass() and for the provided annotation
 	 */
 	public ObjectProvider registerWithAnnotation(Class<? extends Annotation> annotation, Object o) {
+		checkNotFrozen();
 		annotationMap.put(annotation, o);
+		snapshot = null;
 		return register(o);
 	}
 	
@@ -111,7 +174,9 @@ public class ObjectProvider {
 	 */
 	@SuppressWarnings("unchecked")
 	public <X> X getByAnnotation(Class<? extends Annotation> annotation, Class<X> c) {
-		Object o = annotationMap.get(annotation);
+		Snapshot ss = getSnapshot();
+		int slot = ss.shape.findAnnotationSlot(annotation);
+		Object o = slot < 0 ? null : ss.annotationValueAt(slot);
 		if (o == null) LOG.warn("No object for annotation " + annotation + " in " + this);
 		
 //		We do a safe cast if possible here, since we do not know what type of object was used when registering
@@ -122,7 +187,9 @@ public class ObjectProvider {
 	 * Registers o for c.
 	 */
 	public <X> ObjectProvider register(Class<X> c, X o) {
+		checkNotFrozen();
 		map.put(c, o);
+		snapshot = null;
 		return this;
 	}
 	
@@ -156,7 +223,9 @@ public class ObjectProvider {
 	 * objects explicitly.
 	 */
 	public <X> ObjectProvider registerFactory(Class<X> c, ObjectFactory<X> of) {
+		checkNotFrozen();
 		map.put(c, of);
+		snapshot = null;
 		return this;
 	}
 	
@@ -165,13 +234,13 @@ public class ObjectProvider {
 	 */
 	@SuppressWarnings("unchecked")
 	public <X> X get(Class<X> c) {
-		if (map.containsKey(c)) return (X) toValue(map.get(c)); //c.cast(e.value()) will fail if c.isPrimitive()
-		for (Map.Entry<Class<?>, Object> e : map.entrySet()) {
-			if (c.isAssignableFrom(e.getKey())) {
-				Object v = toValue(e.getValue());
-				LOG.debug("Returning "  + v + " with key " + e.getKey() + " for " + c);
-				return (X) v;
-			}
+		Snapshot ss = getSnapshot();
+		int slot = ss.shape.findSlot(c);
+		if (slot >= 0) {
+			Object v = toValue(ss.valueAt(slot)); //c.cast(e.value()) will fail if c.isPrimitive()
+			if (LOG.isDebugEnabled() && ss.shape.keyAt(slot) != c)
+				LOG.debug("Returning "  + v + " with key " + ss.shape.keyAt(slot) + " for " + c);
+			return (X) v;
 		}
 		String msg = "No object registred for " + c + " in " + this;
 		if (errorOnUnknownType) {
@@ -193,11 +262,7 @@ public class ObjectProvider {
 	 * @return True if an object of type c is registered with this ObjectProvider, false otherwise
 	 */
 	public boolean has(Class<?> c) {
-		if (map.containsKey(c)) return true; //c.cast(e.value()) will fail if c.isPrimitive()
-		for (Class<?> mappedclass : map.keySet()) {
-			if (c.isAssignableFrom(mappedclass)) return true;
-		}
-		return false;
+		return getSnapshot().shape.findSlot(c) >= 0;
 	}
 	/**
 	 * @return a copy of this, with the extra object o registered
@@ -213,7 +278,7 @@ public class ObjectProvider {
 		return copyObjectProvider().register(c, o);
 	}
 	@Override public String toString() {
-		return "ObjectProvider: " + Arrays.toString(new Object[]{map, annotationMap, lastArg}); 
+		return "ObjectProvider: " + Arrays.toString(new Object[]{map, annotationMap, lastArg}) + (parent != null ? " copied from " + parent : ""); 
 	}
 	
 	/**
@@ -231,31 +296,245 @@ public class ObjectProvider {
 	 * If a lastArg is specified for this ObjectProvider, the last argument will be that object.
 	 */
 	public Object[] makeArgsFor(Method m) {
-		Class<?>[] pt = m.getParameterTypes();
-		Annotation[][] a = m.getParameterAnnotations();
-		return makeArgsFor(pt, a);
+		Snapshot ss = getSnapshot();
+		ArgPlan p = ss.shape.plans.get(m);
+		if (p == null)
+			p = ss.shape.addPlan(m, m.getParameterTypes(), m.getParameterAnnotations());
+		return makeArgs(ss, p);
 	}
 	/** Same as {@link #makeArgsFor(Method)}, but for a {@link Constructor} */
 	public Object[] makeArgsFor(Constructor cons) {
-		return makeArgsFor(cons.getParameterTypes(), cons.getParameterAnnotations());
+		Snapshot ss = getSnapshot();
+		ArgPlan p = ss.shape.plans.get(cons);
+		if (p == null)
+			p = ss.shape.addPlan(cons, cons.getParameterTypes(), cons.getParameterAnnotations());
+		return makeArgs(ss, p);
 	}
 
-	private Object[] makeArgsFor(Class<?>[] pt, Annotation[][] a) {
-		if (pt.length == 0) return NO_ARUMENTS;
-		Object[] params = new Object[pt.length];
-		for (int i = 0; i < pt.length; i++) {
-			if (i == pt.length - 1 && lastArg != NO_ARG)
+	private Object[] makeArgs(Snapshot ss, ArgPlan p) {
+		int n = p.slots.length;
+		if (n == 0) return NO_ARUMENTS;
+		Object[] params = new Object[n];
+		for (int i = 0; i < n; i++) {
+			int slot = p.slots[i];
+			if (slot == ArgPlan.LAST_ARG)
 				params[i] = lastArg;
-			else {
-				if (a[i].length == 1)
-					params[i] = getByAnnotation(a[i][0].annotationType(), pt[i]);
-				else if (a[i].length == 0)
-					params[i] = get(pt[i]);
-				else
+			else if (p.annotations[i] != null)
+				params[i] = slot == ArgPlan.NOT_FOUND ? getByAnnotation(p.annotations[i].asSubclass(Annotation.class), p.types[i]) : cast(p.types[i], ss.annotationValueAt(slot));
+			else
+				params[i] = slot == ArgPlan.NOT_FOUND ? get(p.types[i]) : toValue(ss.valueAt(slot));
+		}
+		return params;
+	}
+
+	private static Object cast(Class<?> c, Object o) {
+		return c.isPrimitive() ? o : c.cast(o);
+	}
+
+	private Snapshot getSnapshot() {
+		Snapshot ss = snapshot;
+		if (ss == null) {
+			boolean hasLastArg = lastArg != NO_ARG;
+			if (parent != null && map.isEmpty() && annotationMap.isEmpty() && hasLastArg == parent.shape.hasLastArg) {
+				// nothing registered after the copy was made; keep the chain short
+				ss = parent;
+			} else {
+				Shape ps = parent == null ? null : parent.shape;
+				ss = new Snapshot(parent, Shape.intern(new Shape(ps, map.keySet(), annotationMap.keySet(), hasLastArg)), map.values().toArray(), annotationMap.values().toArray());
+			}
+			snapshot = ss;
+		}
+		return ss;
+	}
+
+	/**
+	 * The objects registered in a provider, indexed by the slots of its {@link Shape}; only
+	 * the objects registered after the copy from the parent was made are stored here.
+	 */
+	private static class Snapshot {
+		private final Snapshot parent;
+		private final Shape shape;
+		private final Object[] values;
+		private final Object[] annotationValues;
+		private Snapshot(Snapshot parent, Shape shape, Object[] values, Object[] annotationValues) {
+			this.parent = parent;
+			this.shape = shape;
+			this.values = values;
+			this.annotationValues = annotationValues;
+		}
+		private Object valueAt(int slot) {
+			Snapshot ss = this;
+			while (slot < ss.shape.offset)
+				ss = ss.parent;
+			return ss.values[slot - ss.shape.offset];
+		}
+		private Object annotationValueAt(int slot) {
+			Snapshot ss = this;
+			while (slot < ss.shape.annotationOffset)
+				ss = ss.parent;
+			return ss.annotationValues[slot - ss.shape.annotationOffset];
+		}
+		@Override public String toString() {
+			Map<Class<?>, Object> m = Empty.linkedHashMap();
+			for (int i = 0; i < values.length; i++)
+				m.put(shape.keys.get(i), values[i]);
+			return m + (parent != null ? " copied from " + parent : "");
+		}
+	}
+
+	/** maximum number of distinct shapes kept on top of a shape; the cache is simply cleared if this is exceeded */
+	private static final int MAX_SHAPES = 1024;
+	/**
+	 * the shapes of providers that are not copies; these are only held weakly, so that the
+	 * plans of a shape, which refer to the methods they are for, do not keep classes loaded
+	 * once no provider has the shape. The shapes on top of a shape are kept in that shape.
+	 */
+	private static final Map<Shape, WeakReference<Shape>> ROOT_SHAPES = new WeakHashMap<Shape, WeakReference<Shape>>();
+
+	/**
+	 * The classes and annotations registered in a provider, in registration order, on top of
+	 * the shape of the provider it was copied from; the position of a class in this order is
+	 * its slot. Holds the {@link ArgPlan} objects computed for providers of this shape.
+	 */
+	private static class Shape {
+		private final Shape parent;
+		private final List<Class<?>> keys;
+		private final List<Class<?>> annotationKeys;
+		private final boolean hasLastArg;
+		/** number of slots in the parent shapes */
+		private final int offset, annotationOffset;
+		private final int hashCode;
+		private final ConcurrentMap<Member, ArgPlan> plans = Empty.concurrentMap();
+		/** the shapes of the providers copied from a provider of this shape; see {@link #intern(Shape)} */
+		private final ConcurrentMap<Shape, Shape> children = Empty.concurrentMap();
+		/** map from a class to the slot {@link ObjectProvider#get(Class)} returns for it */
+		private final ConcurrentMap<Class<?>, Integer> classSlots = Empty.concurrentMap();
+
+		private Shape(Shape parent, Collection<Class<?>> keys, Collection<Class<?>> annotationKeys, boolean hasLastArg) {
+			this.parent = parent;
+			this.keys = Empty.list(keys);
+			this.annotationKeys = Empty.list(annotationKeys);
+			this.hasLastArg = hasLastArg;
+			this.offset = parent == null ? 0 : parent.offset + parent.keys.size();
+			this.annotationOffset = parent == null ? 0 : parent.annotationOffset + parent.annotationKeys.size();
+			this.hashCode = 31 * (31 * (31 * System.identityHashCode(parent) + this.keys.hashCode()) + this.annotationKeys.hashCode()) + (hasLastArg ? 1 : 0);
+		}
+
+		private static Shape intern(Shape s) {
+			if (s.parent == null) {
+				synchronized (ROOT_SHAPES) {
+					WeakReference<Shape> ref = ROOT_SHAPES.get(s);
+					Shape old = ref == null ? null : ref.get();
+					if (old != null)
+						return old;
+					ROOT_SHAPES.put(s, new WeakReference<Shape>(s));
+					return s;
+				}
+			}
+			ConcurrentMap<Shape, Shape> shapes = s.parent.children;
+			Shape old = shapes.get(s);
+			if (old != null)
+				return old;
+			if (shapes.size() >= MAX_SHAPES)
+				shapes.clear();
+			old = shapes.putIfAbsent(s, s);
+			return old != null ? old : s;
+		}
+
+		private ArgPlan addPlan(Member m, Class<?>[] pt, Annotation[][] a) {
+			ArgPlan p = new ArgPlan(this, pt, a);
+			plans.put(m, p);
+			return p;
+		}
+
+		/** @return the slot of the given class, or of the first class assignable to it; -1 if none */
+		private int findSlot(Class<?> c) {
+			Integer slot = classSlots.get(c);
+			if (slot == null) {
+				slot = resolveSlot(c);
+				classSlots.put(c, slot);
+			}
+			return slot;
+		}
+		private int resolveSlot(Class<?> c) {
+			int k = findExactSlot(c);
+			if (k >= 0) return k;
+			for (Class<?> key : allKeys()) {
+				if (c.isAssignableFrom(key))
+					return findExactSlot(key);
+			}
+			return -1;
+		}
+		/** @return the slot of the given class; a class registered again after a copy is found in the copy */
+		private int findExactSlot(Class<?> c) {
+			int k = keys.indexOf(c);
+			if (k >= 0) return offset + k;
+			return parent == null ? -1 : parent.findExactSlot(c);
+		}
+		/** @return all the classes in registration order; a class registered again after a copy keeps its original position */
+		private Collection<Class<?>> allKeys() {
+			if (parent == null) return keys;
+			Set<Class<?>> s = Empty.linkedHashSet(parent.allKeys());
+			s.addAll(keys);
+			return s;
+		}
+		/** @return the class registered in the given slot */
+		private Class<?> keyAt(int slot) {
+			Shape s = this;
+			while (slot < s.offset)
+				s = s.parent;
+			return s.keys.get(slot - s.offset);
+		}
+		/** @return the slot of the given annotation; -1 if none */
+		private int findAnnotationSlot(Class<?> a) {
+			int k = annotationKeys.indexOf(a);
+			if (k >= 0) return annotationOffset + k;
+			return parent == null ? -1 : parent.findAnnotationSlot(a);
+		}
+
+		@Override public int hashCode() {
+			return hashCode;
+		}
+		@Override public boolean equals(Object obj) {
+			if (!(obj instanceof Shape)) return false;
+			Shape s = (Shape) obj;
+			return hashCode == s.hashCode && parent == s.parent && hasLastArg == s.hasLastArg && keys.equals(s.keys) && annotationKeys.equals(s.annotationKeys);
+		}
+	}
+
+	/**
+	 * The slot each parameter of a method or constructor is resolved from; this
+	 * is the lookup done by {@link #get(Class)} and {@link #getByAnnotation(Class, Class)}
+	 * computed once for a given {@link Shape}.
+	 */
+	private static class ArgPlan {
+		private static final int LAST_ARG = -1;
+		private static final int NOT_FOUND = -2;
+
+		private final Class<?>[] types;
+		/** the annotation used for the lookup, or null for lookup by class */
+		private final Class<?>[] annotations;
+		private final int[] slots;
+
+		private ArgPlan(Shape shape, Class<?>[] pt, Annotation[][] a) {
+			types = pt;
+			annotations = new Class<?>[pt.length];
+			slots = new int[pt.length];
+			for (int i = 0; i < pt.length; i++) {
+				if (i == pt.length - 1 && shape.hasLastArg) {
+					slots[i] = LAST_ARG;
+				} else if (a[i].length == 1) {
+					annotations[i] = a[i][0].annotationType();
+					int k = shape.findAnnotationSlot(annotations[i]);
+					slots[i] = k < 0 ? NOT_FOUND : k;
+				} else if (a[i].length == 0) {
+					int k = shape.findSlot(pt[i]);
+					slots[i] = k < 0 ? NOT_FOUND : k;
+				} else {
 					throw new IllegalArgumentException("Parameter " + i + " has multiple annotations");
+				}
 			}
 		}
-		return params;
 	}
 
 }
\ No newline at end of file
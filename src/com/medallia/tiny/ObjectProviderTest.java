@@ -0,0 +1,124 @@
+/*
+ * This file is part of the Spider Web Framework.
+ * 
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.tiny;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.medallia.tiny.ObjectProvider.ObjectFactory;
+
+
+/** Tests for the ObjectProvider argument resolution */
+public class ObjectProviderTest extends TestCase {
+	@Retention(RetentionPolicy.RUNTIME)
+	@interface Named { }
+	
+	@SuppressWarnings("unused")
+	private static void target(String s, List<?> l, @Named Object named, Integer i) { }
+	
+	private static final Method TARGET = findTarget();
+	private static Method findTarget() {
+		for (Method m : ObjectProviderTest.class.getDeclaredMethods())
+			if (m.getName().equals("target")) return m;
+		throw new AssertionError();
+	}
+	
+	/** test lookup by exact class, assignable class and annotation */
+	public void testMakeArgsFor() {
+		ArrayList<String> list = Empty.arrayList();
+		ObjectProvider op = new ObjectProvider().register("s").register(list).registerWithAnnotation(Named.class, 7L);
+		// twice to make sure the cached plan gives the same result
+		for (int i = 0; i < 2; i++)
+			assertEquals(Arrays.asList("s", list, 7L, null), Arrays.asList(op.makeArgsFor(TARGET)));
+	}
+	
+	/** test that registering a new object is seen by the next call */
+	public void testReregister() {
+		ObjectProvider op = new ObjectProvider().register("a").register(5);
+		assertEquals("a", op.makeArgsFor(TARGET)[0]);
+		assertEquals(5, op.makeArgsFor(TARGET)[3]);
+		op.register("b");
+		assertEquals("b", op.makeArgsFor(TARGET)[0]);
+		assertEquals("c", op.copyWith("c").makeArgsFor(TARGET)[0]);
+		assertEquals(9, op.copyWithLast(9).makeArgsFor(TARGET)[3]);
+		assertEquals("b", op.makeArgsFor(TARGET)[0]);
+	}
+	
+	/** test that a copy and the provider it was copied from do not see each other's registrations */
+	public void testCopyIsolation() {
+		ObjectProvider op = new ObjectProvider().register("a");
+		ObjectProvider child = op.makeChild().register(5);
+		op.register("b").register(6);
+		assertEquals(Arrays.asList("a", null, null, 5), Arrays.asList(child.makeArgsFor(TARGET)));
+		assertEquals(Arrays.asList("b", null, null, 6), Arrays.asList(op.makeArgsFor(TARGET)));
+		ObjectProvider grandChild = child.makeChild().register("c").registerWithAnnotation(Named.class, 1L);
+		assertEquals(Arrays.asList("c", null, 1L, 5), Arrays.asList(grandChild.makeArgsFor(TARGET)));
+		assertEquals("a", child.get(String.class));
+	}
+	
+	/** test that an object registered again in a copy keeps the position it had for assignable lookups */
+	public void testCopyOrder() {
+		ObjectProvider op = new ObjectProvider().register(1).register("a");
+		assertEquals(1, op.get(Object.class));
+		ObjectProvider child = op.makeChild().register(2);
+		assertEquals(2, child.get(Object.class));
+		assertEquals(2, child.get(Comparable.class));
+		assertTrue(child.has(CharSequence.class));
+		assertFalse(child.has(List.class));
+	}
+	
+	/** test that a frozen provider rejects registrations, but its copies do not */
+	public void testFreeze() {
+		ObjectProvider op = new ObjectProvider().register("a").freeze();
+		try {
+			op.register("b");
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals("b", op.makeChild().register("b").get(String.class));
+		assertEquals("a", op.get(String.class));
+	}
+	
+	/** test that factories are called for each call */
+	public void testFactory() {
+		final int[] count = { 0 };
+		ObjectProvider op = new ObjectProvider().registerFactory(Integer.class, new ObjectFactory<Integer>() {
+			@Implement public Integer make() { return ++count[0]; }
+		});
+		assertEquals(1, op.makeArgsFor(TARGET)[3]);
+		assertEquals(2, op.makeArgsFor(TARGET)[3]);
+	}
+	
+	/** test that a missing object is an error only if requested */
+	public void testErrorOnUnknownType() {
+		assertNull(new ObjectProvider().makeArgsFor(TARGET)[0]);
+		try {
+			new ObjectProvider().errorOnUnknownType().makeArgsFor(TARGET);
+			fail();
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+	
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of the Spider Web Framework.
+ *
+ * The Spider Web Framework is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The Spider Web Framework is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the Spider Web Framework.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.medallia.tiny.string;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import org.antlr.stringtemplate.StringTemplate;
+import org.antlr.stringtemplate.StringTemplateGroup;
+
+/**
+ * StringTemplateGroup whose templates can be loaded before they are first used.
+ * <p>
+ *
+ * StringTemplateGroup parses a template while holding the lock of the group, so
+ * templates are only parsed one at a time. {@link #precompile(String, URL)} parses
+ * the template without the lock, and may thus be called from several threads.
+ * <p>
+ *
+ * Subclasses which cache where the template files are found can clear the cache in
+ * {@link #clearTemplateLocations()}.
+ */
+public class PrecompilingStringTemplateGroup extends StringTemplateGroup {
+
+	public PrecompilingStringTemplateGroup(String name) {
+		super(name);
+	}
+
+	/**
+	 * Parse the template in the given file and add it to the group under the given name,
+	 * unless a template with that name has already been loaded. The template is the same
+	 * as the one {@link #getInstanceOf(String)} would load from the file.
+	 *
+	 * @throws IOException if the file cannot be read; errors in the template are reported
+	 * to the error listener of the group
+	 */
+	public void precompile(String name, URL url) throws IOException {
+		String text = readTemplate(url).trim();
+		if (text.length() == 0) {
+			error("no text in template '" + name + "'");
+			return;
+		}
+		StringTemplate st = createStringTemplate();
+		st.setName(name);
+		st.setGroup(this);
+		st.setNativeGroup(this);
+		st.setTemplate(text);
+		st.setErrorListener(getErrorListener());
+		synchronized (this) {
+			if (!templates.containsKey(name))
+				putTemplate(name, st);
+		}
+	}
+
+	/** add the given template to the cache of the group, which is a raw Map */
+	@SuppressWarnings("unchecked")
+	private void putTemplate(String name, StringTemplate st) {
+		templates.put(name, st);
+	}
+
+	/**
+	 * Called when the locations of the template files may have changed: when the templates
+	 * are read again after the refresh interval has passed, when the refresh interval is set,
+	 * and before looking up again a template which could not be found. With a refresh interval
+	 * of 0 the templates are read again each time they are looked up, and this is then called
+	 * before each lookup so that new files, e.g. ones overriding a template, are found at once.
+	 * Does nothing by default.
+	 */
+	protected void clearTemplateLocations() { }
+
+	@Override protected void checkRefreshInterval() {
+		if (refreshIntervalInSeconds == 0 || System.currentTimeMillis() - lastCheckedDisk >= refreshIntervalInSeconds * 1000L)
+			clearTemplateLocations();
+		super.checkRefreshInterval();
+	}
+
+	@Override public void setRefreshInterval(int refreshInterval) {
+		super.setRefreshInterval(refreshInterval);
+		clearTemplateLocations();
+	}
+
+	@Override public synchronized StringTemplate lookupTemplate(StringTemplate enclosingInstance, String name) throws IllegalArgumentException {
+		try {
+			return super.lookupTemplate(enclosingInstance, name);
+		} catch (IllegalArgumentException e) {
+			// the file may have been removed, e.g. so that the one in the package of a superclass is used
+			clearTemplateLocations();
+			return super.lookupTemplate(enclosingInstance, name);
+		}
+	}
+
+	/** @return the text of the template in the given file, read the same way as {@link StringTemplateGroup} does it */
+	private String readTemplate(URL url) throws IOException {
+		InputStream in = url.openStream();
+		try {
+			BufferedReader r = new BufferedReader(getInputStreamReader(in));
+			String nl = System.getProperty("line.separator");
+			StringBuilder sb = new StringBuilder(300);
+			String line;
+			while ((line = r.readLine()) != null) {
+				sb.append(line);
+				sb.append(nl);
+			}
+			return sb.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -16,6 +16,7 @@
  */
 package com.medallia.tiny.web;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /** Http Response Header utilities */
@@ -44,4 +45,73 @@ public class HttpHeaders {
 		response.setHeader("Cache-Control", "no-cache, must-revalidate");
 	}
 
-}
\ No newline at end of file
+	/**
+	 * @return true if the If-None-Match header of the request matches the given ETag,
+	 * i.e. if the client already has the current version of the response
+	 */
+	public static boolean isNotModified(HttpServletRequest request, String etag) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch == null)
+			return false;
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			// weak comparison, which is what If-None-Match uses
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.equals("*") || tag.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the If-Modified-Since header of the request is not before the given
+	 * time, in milliseconds since the epoch; the header only has a precision of seconds
+	 */
+	public static boolean isNotModifiedSince(HttpServletRequest request, long lastModified) {
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			// the header is ignored if it is not a valid date
+			return false;
+		}
+		return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * @return true if the Accept-Encoding header of the request allows a response
+	 * compressed with gzip
+	 */
+	public static boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null)
+			return false;
+		Boolean any = null;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			if (name.equals("gzip") || name.equals("x-gzip"))
+				return !isZeroQuality(parts);
+			if (name.equals("*"))
+				any = !isZeroQuality(parts);
+		}
+		return any != null && any;
+	}
+
+	/** @return true if the parameters of a header value include q=0 */
+	private static boolean isZeroQuality(String[] parts) {
+		for (int i = 1; i < parts.length; i++) {
+			String p = parts[i].trim();
+			if (p.startsWith("q=")) {
+				try {
+					return Double.parseDouble(p.substring(2)) == 0;
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+}